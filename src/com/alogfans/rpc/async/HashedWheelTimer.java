@@ -0,0 +1,253 @@
+package com.alogfans.rpc.async;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for large numbers of short-lived deadlines, such as the timeouts of outstanding
+ * calls. Timeouts are hashed into the buckets of a wheel by their deadline, and one worker
+ * thread advances the wheel by one bucket per tick, expiring what is due. Scheduling and
+ * cancelling only append to lock-free queues, so both cost O(1) whatever the number of
+ * pending timeouts; the price is that timeouts fire up to one tick late.
+ *
+ * Tasks run in the worker thread and should hand any real work over to another executor.
+ */
+public class HashedWheelTimer {
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Thread workerThread;
+    private final long startTime;
+    private volatile boolean stopped = false;
+
+    // written by any thread, moved into the wheel by the worker at each tick
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private long tick = 0;
+
+    public HashedWheelTimer(String name) {
+        this(name, 10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @param name name of the worker thread
+     * @param tickDuration time covered by one bucket, the precision of the timer
+     * @param unit unit of the tick duration
+     * @param ticksPerWheel count of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 1) - 1) << 1;
+        if (size <= 0)
+            size = 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.tickDuration = Math.max(unit.toNanos(tickDuration), TimeUnit.MILLISECONDS.toNanos(1));
+
+        this.startTime = System.nanoTime();
+        this.workerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, name);
+        this.workerThread.setDaemon(true);
+        this.workerThread.start();
+    }
+
+    /**
+     * Schedule the task to run once after the given delay.
+     * @param task task to run in the worker thread
+     * @param delay delay before it runs
+     * @param unit unit of the delay
+     * @return handle to cancel the task.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (stopped)
+            throw new IllegalStateException("Timer stopped.");
+
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        if (deadline < 0)       // overflow of a delay meaning forever
+            deadline = Long.MAX_VALUE;
+
+        Timeout timeout = new Timeout(this, task, deadline);
+        pendingTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the worker thread. Timeouts not expired yet are dropped.
+     */
+    public void stop() {
+        stopped = true;
+        workerThread.interrupt();
+    }
+
+    private void runWorker() {
+        while (!stopped) {
+            if (waitForNextTick() < 0)
+                break;
+
+            processCancelledTimeouts();
+            transferTimeoutsToBuckets();
+            wheel[(int) (tick & mask)].expireTimeouts();
+            tick++;
+        }
+    }
+
+    /**
+     * Sleep until the end of the current tick.
+     * @return time elapsed since start, negative if stopped.
+     */
+    private long waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while (true) {
+            long now = System.nanoTime() - startTime;
+            if (now >= deadline)
+                return now;
+            LockSupport.parkNanos(this, deadline - now);
+            if (stopped)
+                return -1;
+        }
+    }
+
+    private void processCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void transferTimeoutsToBuckets() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null)
+                break;
+            if (timeout.state.get() == Timeout.ST_CANCELLED)
+                continue;
+
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+            // already due ones go to the current bucket
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        // owned by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task if it has not run yet.
+         * @return false if it has already run or been cancelled.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED))
+                return false;
+            // unlinked from its bucket by the worker at the next tick
+            timer.cancelledTimeouts.offer(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED))
+                return;
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts hashed to one slot of the wheel.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    // the bucket of this tick only holds deadlines up to now in its last round
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            if (timeout == head)
+                head = timeout.next;
+            if (timeout == tail)
+                tail = timeout.prev;
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.alogfans.rpc.async;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Credits bounding the calls in flight. A call takes one credit before it is sent and gives
+ * it back once finished. Callers finding no credit left either wait for one, give up, or
+ * leave a task that is run with the credit of the next call to finish.
+ *
+ * Delayed tasks and waiting callers are served in one queue, in order, and new callers do
+ * not overtake them. At most as many tasks as credits may be delayed, so the memory held by
+ * waiting calls stays bounded too.
+ */
+public class InFlightWindow {
+    private final int capacity;
+    private final Semaphore credits;
+    private final Executor executor;
+
+    // tasks and callers waiting for a credit, each one owns the credit it is run with
+    private final ConcurrentLinkedQueue<Runnable> delayedTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger countDelayed = new AtomicInteger();
+    private final AtomicInteger countWaiting = new AtomicInteger();
+
+    // a caller blocked in acquire, woken up in the thread giving back the credit
+    private static final class Waiter implements Runnable {
+        final CountDownLatch granted = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            granted.countDown();
+        }
+    }
+
+    /**
+     * @param capacity count of credits, the maximum of calls in flight
+     * @param executor executor running the delayed tasks, never the thread giving back the credit
+     */
+    public InFlightWindow(int capacity, Executor executor) {
+        this.capacity = capacity;
+        this.credits = new Semaphore(capacity);
+        this.executor = executor;
+    }
+
+    /**
+     * Take a credit if one is left and no delayed task or caller waits for it.
+     * @return true if a credit was taken.
+     */
+    public boolean tryAcquire() {
+        return countDelayed.get() == 0 && countWaiting.get() == 0 && credits.tryAcquire();
+    }
+
+    /**
+     * Wait for a credit, after the delayed tasks and callers already waiting.
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return true if a credit was taken, false if timed out.
+     */
+    public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        if (tryAcquire())
+            return true;
+
+        Waiter waiter = new Waiter();
+        countWaiting.incrementAndGet();
+        delayedTasks.offer(waiter);
+        runDelayedTasks();
+        try {
+            if (waiter.granted.await(timeout, unit))
+                return true;
+        } catch (InterruptedException e) {
+            // granted meanwhile, the credit is not used
+            if (!withdraw(waiter))
+                release();
+            throw e;
+        }
+        // granted while giving up, it is used after all
+        return !withdraw(waiter);
+    }
+
+    private boolean withdraw(Waiter waiter) {
+        if (!delayedTasks.remove(waiter))
+            return false;
+        countWaiting.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Give back a credit, handing it over to the first delayed task if any.
+     */
+    public void release() {
+        credits.release();
+        runDelayedTasks();
+    }
+
+    /**
+     * Run the task in the executor once a credit is available. The task owns the credit,
+     * and has to give it back whether or not it sends its call.
+     * @param task task sending the call
+     * @return false if too many tasks are delayed already.
+     */
+    public boolean delay(Runnable task) {
+        if (countDelayed.incrementAndGet() > capacity) {
+            countDelayed.decrementAndGet();
+            return false;
+        }
+        delayedTasks.offer(task);
+        // a credit may have been given back before the task was queued
+        runDelayedTasks();
+        return true;
+    }
+
+    private void runDelayedTasks() {
+        while (!delayedTasks.isEmpty() && credits.tryAcquire()) {
+            Runnable task = delayedTasks.poll();
+            if (task == null) {         // taken by another thread
+                credits.release();
+                continue;
+            }
+            if (task instanceof Waiter) {
+                countWaiting.decrementAndGet();
+                task.run();
+            } else {
+                countDelayed.decrementAndGet();
+                executor.execute(task);
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return calls holding a credit, including delayed tasks being run.
+     */
+    public int getInFlight() {
+        return capacity - credits.availablePermits();
+    }
+
+    public int getDelayed() {
+        return countDelayed.get();
+    }
+
+    /**
+     * @return callers blocked waiting for a credit.
+     */
+    public int getWaiting() {
+        return countWaiting.get();
+    }
+}
@@ -0,0 +1,174 @@
+package com.alogfans.rpc.async;
+
+/**
+ * Concurrent table of outstanding calls keyed by the primitive 64-bit call ID, so that
+ * a response is matched in constant time without boxing its key. The table is split into
+ * segments, each one an open-addressing hash table with linear probing guarded by its
+ * own monitor, so concurrent callers rarely contend.
+ */
+public class PendingCallTable<V> {
+    private static final int SEGMENT_COUNT = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public PendingCallTable() {
+        segments = (Segment<V>[]) new Segment<?>[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++)
+            segments[i] = new Segment<>();
+    }
+
+    public void put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException("Null value is not allowed.");
+        segmentFor(key).put(key, value);
+    }
+
+    public V get(long key) {
+        return segmentFor(key).get(key);
+    }
+
+    public V remove(long key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Take a snapshot of all keys currently in the table. It is only used by slow paths
+     * such as cancellation by method name.
+     * @return keys present at the time of the call, for every segment.
+     */
+    public long[] keys() {
+        long[] result = new long[0];
+        int count = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                if (result.length < count + segment.size) {
+                    long[] grown = new long[(count + segment.size) * 2];
+                    System.arraycopy(result, 0, grown, 0, count);
+                    result = grown;
+                }
+                for (int i = 0; i < segment.values.length; i++) {
+                    if (segment.values[i] != null)
+                        result[count++] = segment.keys[i];
+                }
+            }
+        }
+        long[] keys = new long[count];
+        System.arraycopy(result, 0, keys, 0, count);
+        return keys;
+    }
+
+    private Segment<V> segmentFor(long key) {
+        return segments[(int) (mix(key) >>> 60) & (SEGMENT_COUNT - 1)];
+    }
+
+    private static long mix(long key) {
+        // finalizer of MurmurHash3, sequential IDs spread over all slots
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static class Segment<V> {
+        long[] keys = new long[INITIAL_CAPACITY];
+        Object[] values = new Object[INITIAL_CAPACITY];
+        int size = 0;
+
+        synchronized void put(long key, V value) {
+            if ((size + 1) * 4 > values.length * 3)
+                resize(values.length * 2);
+
+            int mask = values.length - 1;
+            int index = (int) mix(key) & mask;
+            while (values[index] != null) {
+                if (keys[index] == key) {
+                    values[index] = value;
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key) {
+            int mask = values.length - 1;
+            int index = (int) mix(key) & mask;
+            while (values[index] != null) {
+                if (keys[index] == key)
+                    return (V) values[index];
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key) {
+            int mask = values.length - 1;
+            int index = (int) mix(key) & mask;
+            while (values[index] != null) {
+                if (keys[index] == key) {
+                    V value = (V) values[index];
+                    values[index] = null;
+                    size--;
+                    shiftBack(index, mask);
+                    return value;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        // backward-shift deletion keeps probe sequences intact without tombstones
+        private void shiftBack(int hole, int mask) {
+            int index = (hole + 1) & mask;
+            while (values[index] != null) {
+                int home = (int) mix(keys[index]) & mask;
+                boolean movable = hole <= index
+                        ? (home <= hole || home > index)
+                        : (home <= hole && home > index);
+                if (movable) {
+                    keys[hole] = keys[index];
+                    values[hole] = values[index];
+                    values[index] = null;
+                    hole = index;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+
+            int mask = capacity - 1;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] == null)
+                    continue;
+                int index = (int) mix(oldKeys[i]) & mask;
+                while (values[index] != null)
+                    index = (index + 1) & mask;
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package com.alogfans.rpc.async;
 
-import com.alogfans.rpc.marshal.ResponsePacket;
-
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
+ * Future of the last async call made by the current thread, set by
+ * <code>Invoker.invokeAsync</code> and <code>Invoker.asyncInvoke</code>.
+ *
  * Created by Alogfans on 2015/8/7.
  */
 public class ResponseFuture {
@@ -19,14 +20,9 @@ public class ResponseFuture {
         }
 
         try {
-            ResponsePacket response = (ResponsePacket) (futureThreadLocal.get().get(timeout, TimeUnit.MILLISECONDS));
-            if (response.exception != null) {
-                throw new RuntimeException(response.exception);
-            }
-            return response.result;
-
+            return futureThreadLocal.get().get(timeout, TimeUnit.MILLISECONDS);
         } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+            throw new RuntimeException(e.getCause());
         } catch (TimeoutException e) {
             throw new RuntimeException("Time out", e);
         }
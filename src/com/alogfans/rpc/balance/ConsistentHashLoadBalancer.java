@@ -0,0 +1,108 @@
+package com.alogfans.rpc.balance;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Routes calls carrying a <code>RouteKey</code> over a consistent-hash ring, so calls of
+ * the same key stick to one endpoint. Each endpoint owns many virtual nodes on the ring,
+ * placed by its address only, so when an endpoint joins, leaves or is ejected, only the
+ * keys it owned move. Calls without a key are handed to the fallback balancer.
+ */
+public class ConsistentHashLoadBalancer implements LoadBalancer {
+    private final int virtualNodes;
+    private final LoadBalancer fallback;
+
+    // rebuilt whenever the endpoints in rotation change
+    private volatile Ring ring = null;
+
+    public ConsistentHashLoadBalancer() {
+        this(160, new PowerOfTwoChoicesLoadBalancer());
+    }
+
+    /**
+     * @param virtualNodes count of points of each endpoint on the ring, more points spread keys more evenly
+     * @param fallback balancer of calls without route key
+     */
+    public ConsistentHashLoadBalancer(int virtualNodes, LoadBalancer fallback) {
+        this.virtualNodes = virtualNodes;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Endpoint select(List<Endpoint> endpoints, RequestPacket requestPacket) {
+        if (requestPacket.routeKey == null)
+            return fallback.select(endpoints, requestPacket);
+
+        Ring ring = this.ring;
+        if (ring == null || !ring.endpoints.equals(endpoints)) {
+            ring = new Ring(endpoints, virtualNodes);
+            this.ring = ring;
+        }
+        return ring.lookup(hash(String.valueOf(requestPacket.routeKey)));
+    }
+
+    private static class Ring {
+        private final List<Endpoint> endpoints;
+        private final long[] points;
+        private final Endpoint[] owners;
+
+        Ring(List<Endpoint> endpoints, int virtualNodes) {
+            this.endpoints = endpoints;
+
+            long[][] nodes = new long[endpoints.size() * virtualNodes][];
+            int count = 0;
+            for (int i = 0; i < endpoints.size(); i++) {
+                Endpoint endpoint = endpoints.get(i);
+                String address = endpoint.getHostname() + ":" + endpoint.getPort();
+                for (int j = 0; j < virtualNodes; j++)
+                    nodes[count++] = new long[] {hash(address + "#" + j), i};
+            }
+            Arrays.sort(nodes, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+
+            points = new long[count];
+            owners = new Endpoint[count];
+            for (int i = 0; i < count; i++) {
+                points[i] = nodes[i][0];
+                owners[i] = endpoints.get((int) nodes[i][1]);
+            }
+        }
+
+        /**
+         * @return owner of the first point clockwise from the hash.
+         */
+        Endpoint lookup(long hash) {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0)
+                index = -index - 1;
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finalized with the MurmurHash3 mix so that
+     * similar strings such as the virtual nodes of one endpoint spread over the ring.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
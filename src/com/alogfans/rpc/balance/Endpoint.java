@@ -0,0 +1,153 @@
+package com.alogfans.rpc.balance;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One server known by RpcClient, with the live statistics load balancers choose by.
+ * Counters are updated by RpcClient as calls are sent and finished.
+ */
+public class Endpoint {
+    // weight of the newest sample in the latency average
+    private static final double EWMA_ALPHA = 0.3;
+    // time over which the average fades while no call finishes, so that an endpoint which
+    // answered slowly once is tried again instead of being avoided for good
+    private static final long DECAY_TIME = TimeUnit.SECONDS.toNanos(1);
+
+    private final int index;
+    private final String hostname;
+    private final int port;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder countCalls = new LongAdder();
+    private final LongAdder countFailures = new LongAdder();
+    private final LongAdder countEjections = new LongAdder();
+    private volatile long ewmaLatency = 0;
+    private volatile long lastSampleTime = 0;
+    private volatile long ejectedUntil = 0;
+    private volatile boolean ejected = false;
+
+    public Endpoint(int index, String hostname, int port) {
+        this.index = index;
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void onCallStarted() {
+        inFlight.incrementAndGet();
+        countCalls.increment();
+    }
+
+    /**
+     * Record a finished call.
+     * @param latency nanoseconds from sending to the response, negative if there is no response
+     * @param failed whether the call counts against the health of this endpoint
+     * @return the count of consecutive failed calls, including this one.
+     */
+    public int onCallFinished(long latency, boolean failed) {
+        inFlight.decrementAndGet();
+        if (latency >= 0)
+            recordLatency(latency);
+
+        if (!failed) {
+            consecutiveFailures.set(0);
+            return 0;
+        }
+        countFailures.increment();
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    private synchronized void recordLatency(long latency) {
+        long now = System.nanoTime();
+        long average = decay(ewmaLatency, now - lastSampleTime);
+        if (average == 0) {
+            ewmaLatency = latency;
+        } else {
+            // the longer since the last sample, the more the new one weighs
+            double weight = Math.max(EWMA_ALPHA, 1 - Math.exp(-(double) (now - lastSampleTime) / DECAY_TIME));
+            ewmaLatency = average + (long) ((latency - average) * weight);
+        }
+        lastSampleTime = now;
+    }
+
+    private static long decay(long average, long elapsed) {
+        if (average == 0 || elapsed <= 0)
+            return average;
+        return (long) (average * Math.exp(-(double) elapsed / DECAY_TIME));
+    }
+
+    /**
+     * Take this endpoint out of rotation for a while.
+     * @param until <code>System.nanoTime()</code> when it may be chosen again
+     */
+    public void eject(long until) {
+        ejectedUntil = until;
+        ejected = true;
+        consecutiveFailures.set(0);
+        countEjections.increment();
+    }
+
+    /**
+     * Forget the health and latency measured before a connection to this endpoint was
+     * reopened, so that it is tried again as if new.
+     */
+    public synchronized void onReconnected() {
+        ewmaLatency = 0;
+        consecutiveFailures.set(0);
+        ejected = false;
+    }
+
+    public boolean isEjected(long now) {
+        if (!ejected)
+            return false;
+        if (now - ejectedUntil < 0)
+            return true;
+        ejected = false;
+        return false;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return moving average of the response time in nanoseconds, fading while no call
+     * finishes, 0 before the first response.
+     */
+    public long getEwmaLatency() {
+        return decay(ewmaLatency, System.nanoTime() - lastSampleTime);
+    }
+
+    public long getCountCalls() {
+        return countCalls.sum();
+    }
+
+    public long getCountFailures() {
+        return countFailures.sum();
+    }
+
+    public long getCountEjections() {
+        return countEjections.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d: inFlight=%d, ewma=%.3fms, calls=%d, failures=%d, ejections=%d%s",
+                hostname, port, getInFlight(), getEwmaLatency() / 1e6, getCountCalls(), getCountFailures(),
+                getCountEjections(), ejected ? " (ejected)" : "");
+    }
+}
@@ -0,0 +1,18 @@
+package com.alogfans.rpc.balance;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+
+import java.util.List;
+
+/**
+ * Chooses the endpoint of each call made by RpcClient. Implementations are called
+ * concurrently by all calling threads.
+ */
+public interface LoadBalancer {
+    /**
+     * @param endpoints endpoints currently in rotation, never empty
+     * @param requestPacket the call to route
+     * @return one of the given endpoints.
+     */
+    Endpoint select(List<Endpoint> endpoints, RequestPacket requestPacket);
+}
@@ -0,0 +1,41 @@
+package com.alogfans.rpc.balance;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples two endpoints at random and takes the less loaded one, where load is the count
+ * of calls in flight weighted by the average latency. Nearly as good as always taking the
+ * least loaded endpoint, without scanning all of them or herding onto the same one.
+ */
+public class PowerOfTwoChoicesLoadBalancer implements LoadBalancer {
+    @Override
+    public Endpoint select(List<Endpoint> endpoints, RequestPacket requestPacket) {
+        int size = endpoints.size();
+        if (size == 1)
+            return endpoints.get(0);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first)
+            second++;
+
+        Endpoint a = endpoints.get(first);
+        Endpoint b = endpoints.get(second);
+        return compareLoad(a, b) <= 0 ? a : b;
+    }
+
+    private static int compareLoad(Endpoint a, Endpoint b) {
+        long latencyA = a.getEwmaLatency();
+        long latencyB = b.getEwmaLatency();
+        if (latencyA == 0 || latencyB == 0) {
+            // not measured yet, in-flight calls are all we know
+            return Integer.compare(a.getInFlight(), b.getInFlight());
+        }
+        return Double.compare((a.getInFlight() + 1) * (double) latencyA,
+                (b.getInFlight() + 1) * (double) latencyB);
+    }
+}
@@ -0,0 +1,16 @@
+package com.alogfans.rpc.balance;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks an endpoint uniformly at random for each call.
+ */
+public class RandomLoadBalancer implements LoadBalancer {
+    @Override
+    public Endpoint select(List<Endpoint> endpoints, RequestPacket requestPacket) {
+        return endpoints.get(ThreadLocalRandom.current().nextInt(endpoints.size()));
+    }
+}
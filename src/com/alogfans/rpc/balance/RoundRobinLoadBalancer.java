@@ -0,0 +1,19 @@
+package com.alogfans.rpc.balance;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands calls to the endpoints in turn.
+ */
+public class RoundRobinLoadBalancer implements LoadBalancer {
+    private final AtomicInteger nextEndpoint = new AtomicInteger();
+
+    @Override
+    public Endpoint select(List<Endpoint> endpoints, RequestPacket requestPacket) {
+        int next = nextEndpoint.getAndIncrement() & Integer.MAX_VALUE;
+        return endpoints.get(next % endpoints.size());
+    }
+}
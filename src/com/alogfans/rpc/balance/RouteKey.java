@@ -0,0 +1,23 @@
+package com.alogfans.rpc.balance;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the argument of an interface method whose value routes the call. With
+ * <code>ConsistentHashLoadBalancer</code>, calls of equal keys go to the same endpoint,
+ * for example:
+ * <pre>
+ *     Profile getProfile(@RouteKey long userId);
+ * </pre>
+ * Keys are compared by <code>String.valueOf</code>, so they should have a stable
+ * <code>toString</code>. At most one argument of a method may be marked.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface RouteKey {
+}
@@ -0,0 +1,33 @@
+package com.alogfans.rpc.cache;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface method whose result only depends on its arguments, for example a
+ * pure lookup. <code>Invoker</code> then keeps its results, and answers later calls of
+ * equal arguments without going to the server:
+ * <pre>
+ *     &#64;Cacheable(ttl = 30000, maxSize = 4096)
+ *     Profile getProfile(long userId);
+ * </pre>
+ * Arguments are compared with <code>Arrays.deepEquals</code>. Cached results are shared by
+ * all callers, so they should not be modified. Failed calls are never cached.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+    /**
+     * @return milliseconds a result is kept after the call, 0 to keep it until evicted.
+     */
+    long ttl() default 60000;
+
+    /**
+     * @return maximum count of results kept, the least recently used are evicted first.
+     */
+    int maxSize() default 1024;
+}
@@ -0,0 +1,240 @@
+package com.alogfans.rpc.cache;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of one <code>Cacheable</code> method, keyed by the arguments of the calls.
+ * Entries are spread over segments by hash, each a small LRU map behind its own lock, so
+ * concurrent callers rarely contend. Each segment holds its share of the maximum size and
+ * evicts its least recently used entry beyond it; expired entries are dropped when met.
+ *
+ * Every invalidation starts a new epoch of the segments it clears, and a result is only
+ * kept if its segment was not invalidated since its call was sent, so a call in flight
+ * cannot bring back a stale result. Invalidating one key leaves the calls in flight for
+ * keys of other segments alone.
+ */
+public class ResultCache {
+    /** Returned by <code>get</code> when no result is cached, results may be null. */
+    public static final Object MISS = new Object();
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final long ttl;
+    private final int maxSize;
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Key {
+        private final Object[] args;
+        private final int hashCode;
+
+        Key(Object[] args) {
+            this.args = args;
+            this.hashCode = Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Key && hashCode == ((Key) object).hashCode
+                    && Arrays.deepEquals(args, ((Key) object).args);
+        }
+    }
+
+    private static final class CachedResult {
+        final Object result;
+        final long expireTime;
+
+        CachedResult(Object result, long expireTime) {
+            this.result = result;
+            this.expireTime = expireTime;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, CachedResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        // moved by each invalidation of this segment, guarded by its lock
+        private long epoch;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+            if (size() <= capacity)
+                return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    /**
+     * @param ttl milliseconds a result is kept, 0 to keep it until evicted
+     * @param maxSize maximum count of results kept
+     */
+    public ResultCache(long ttl, int maxSize) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(Math.max(ttl, 0));
+        this.maxSize = Math.max(maxSize, 1);
+
+        int countSegments = 1;
+        while (countSegments < MAX_SEGMENTS && countSegments * 2 <= this.maxSize)
+            countSegments <<= 1;
+        this.segments = new Segment[countSegments];
+        for (int i = 0; i < countSegments; i++)
+            segments[i] = new Segment((this.maxSize + countSegments - 1 - i) / countSegments, evictions);
+    }
+
+    public ResultCache(Cacheable cacheable) {
+        this(cacheable.ttl(), cacheable.maxSize());
+    }
+
+    /**
+     * Look up the result of a call.
+     * @param args arguments of the call, may be null
+     * @return the cached result, or <code>MISS</code> if none or expired.
+     */
+    public Object get(Object[] args) {
+        Key key = new Key(args);
+        Segment segment = segmentOf(key);
+        CachedResult cachedResult;
+        synchronized (segment) {
+            cachedResult = segment.get(key);
+            if (cachedResult != null && isExpired(cachedResult)) {
+                segment.remove(key);
+                cachedResult = null;
+            }
+        }
+
+        if (cachedResult == null) {
+            misses.increment();
+            return MISS;
+        }
+        hits.increment();
+        return cachedResult.result;
+    }
+
+    /**
+     * @param args arguments of the call, may be null
+     * @return the current epoch of the segment of these arguments, to be taken before sending
+     * a call whose result is then put.
+     */
+    public long getEpoch(Object[] args) {
+        Segment segment = segmentOf(new Key(args));
+        synchronized (segment) {
+            return segment.epoch;
+        }
+    }
+
+    /**
+     * Keep the result of a successful call, unless its segment was invalidated meanwhile.
+     * @param args arguments of the call, copied so that later changes of the array do not matter
+     * @param result result of the call, may be null
+     * @param epoch epoch of the segment taken before the call was sent
+     */
+    public void put(Object[] args, Object result, long epoch) {
+        Key key = new Key(args == null ? null : args.clone());
+        CachedResult cachedResult = new CachedResult(result, ttl > 0 ? System.nanoTime() + ttl : 0);
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            if (segment.epoch == epoch)
+                segment.put(key, cachedResult);
+        }
+    }
+
+    /**
+     * Drop the result of the call with these arguments, if cached.
+     * @param args arguments of the call, may be null
+     */
+    public void invalidate(Object[] args) {
+        Key key = new Key(args);
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            segment.epoch++;
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Drop all results, statistics are kept.
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.epoch++;
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return count of results kept, expired ones included until met.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return calls answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return calls not found or expired in the cache.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return results evicted to stay within the maximum size.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions();
+    }
+
+    private boolean isExpired(CachedResult cachedResult) {
+        return ttl > 0 && System.nanoTime() - cachedResult.expireTime >= 0;
+    }
+
+    private Segment segmentOf(Key key) {
+        int hash = key.hashCode;
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+}
@@ -0,0 +1,295 @@
+package com.alogfans.rpc.control;
+
+import com.alogfans.rpc.marshal.Codec;
+import com.alogfans.rpc.marshal.MarshalHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * One established socket, pinned to an EventLoop. Any thread may send packets: they are
+ * encoded by the sender and appended to a lock-free outbound queue, which only the thread
+ * of the event loop drains. Partial writes leave the rest queued and wait for
+ * <code>OP_WRITE</code>, so frames of any size never interleave.
+ *
+ * All frames queued by the time the loop flushes are written with one gathering write;
+ * a coalescing window additionally delays the flush to let more frames join it.
+ */
+public class Connection implements EventHandler {
+    /**
+     * Receives what happens on a connection, always in the thread of its event loop.
+     */
+    public interface Handler {
+        void onPacket(Connection connection, Object packet);
+        void onClosed(Connection connection);
+    }
+
+    private static final int MAX_GATHER_FRAMES = 64;
+
+    private final SocketChannel socketChannel;
+    private final EventLoop eventLoop;
+    private final Codec codec;
+    private final Handler handler;
+    private final FrameDecoder frameDecoder;
+
+    private SelectionKey selectionKey = null;
+    private volatile boolean closed = false;
+    private volatile Object attachment = null;
+    private volatile FrameCompressor compressor = null;
+
+    // frames waiting to be written
+    private final ConcurrentLinkedQueue<ByteBuffer> outboundQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private long coalescingWindow = 0;
+    private FlushStats flushStats = null;
+
+    // frames taken from the queue for one gathering write, the first may be partially written
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_GATHER_FRAMES];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    public Connection(SocketChannel socketChannel, EventLoop eventLoop, Codec codec, Handler handler) {
+        this.socketChannel = socketChannel;
+        this.eventLoop = eventLoop;
+        this.codec = codec;
+        this.handler = handler;
+        this.frameDecoder = new FrameDecoder(codec);
+    }
+
+    /**
+     * Delay each flush so that frames queued meanwhile share its write system call.
+     * @param coalescingWindow delay in nanoseconds, 0 to flush at the end of each loop iteration
+     * @return the caller Connection itself.
+     */
+    public Connection setCoalescingWindow(long coalescingWindow) {
+        this.coalescingWindow = coalescingWindow;
+        return this;
+    }
+
+    public Connection setFlushStats(FlushStats flushStats) {
+        this.flushStats = flushStats;
+        return this;
+    }
+
+    /**
+     * Attach an object of the owner, e.g. its per-connection state.
+     * @param attachment the object to attach, may be null
+     * @return the caller Connection itself.
+     */
+    public Connection attach(Object attachment) {
+        this.attachment = attachment;
+        return this;
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    /**
+     * Compress large frames in both directions, once the handshake agreed on it. Frames
+     * sent before are not compressed, frames sent after may be.
+     * @param compressor compressor of this connection only
+     * @return the caller Connection itself.
+     */
+    public Connection setCompressor(final FrameCompressor compressor) {
+        this.compressor = compressor;
+        if (eventLoop.inEventLoop()) {
+            frameDecoder.setCompressor(compressor);
+        } else {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    frameDecoder.setCompressor(compressor);
+                }
+            });
+        }
+        return this;
+    }
+
+    public FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Register the channel on the event loop, from any thread.
+     */
+    public void register() {
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socketChannel.configureBlocking(false);
+                    selectionKey = socketChannel.register(eventLoop.getSelector(), SelectionKey.OP_READ, Connection.this);
+                    // frames may have been queued before registration
+                    flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Encode the packet in the calling thread and queue it for writing.
+     * @param packet the packet to send
+     * @throws IOException if it cannot be encoded or the connection is closed
+     */
+    public void send(Object packet) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+
+        ByteBuffer frame = MarshalHelper.encodeFrame(codec, packet);
+        FrameCompressor compressor = this.compressor;
+        if (compressor != null)
+            frame = compressor.compress(frame);
+        outboundQueue.offer(frame);
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (coalescingWindow > 0)
+                eventLoop.schedule(flushTask, coalescingWindow);
+            else
+                eventLoop.execute(flushTask);
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey selectionKey) {
+        if (selectionKey.isReadable()) {
+            onReadable();
+        }
+        if (selectionKey.isValid() && selectionKey.isWritable()) {
+            flush();
+        }
+    }
+
+    /**
+     * Close the connection like any broken one, so that its handler learns about it.
+     */
+    @Override
+    public void onFailure(SelectionKey selectionKey, RuntimeException exception) {
+        exception.printStackTrace();
+        close();
+    }
+
+    private void onReadable() {
+        try {
+            boolean isOpen = frameDecoder.onReadable(socketChannel, new Consumer<Object>() {
+                @Override
+                public void accept(Object packet) {
+                    handler.onPacket(Connection.this, packet);
+                }
+            });
+            if (isOpen)
+                return;
+        } catch (IOException e) {
+            // broken connection or corrupted stream, only this connection is affected
+        } catch (RuntimeException e) {
+            // malformed frame the codec choked on, or a failing handler
+            e.printStackTrace();
+        }
+        close();
+    }
+
+    private void flush() {
+        if (closed || selectionKey == null)
+            return;
+
+        int countFrames = 0;
+        int countWrites = 0;
+        try {
+            while (true) {
+                if (batchStart == batchEnd && !fillWriteBatch())
+                    break;
+
+                socketChannel.write(writeBatch, batchStart, batchEnd - batchStart);
+                countWrites++;
+                while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                    writeBatch[batchStart++] = null;
+                    countFrames++;
+                }
+
+                if (batchStart < batchEnd) {
+                    // socket buffer is full, continue when it becomes writable
+                    selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0)
+                selectionKey.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+        } finally {
+            if (flushStats != null && countWrites > 0)
+                flushStats.record(countFrames, countWrites);
+        }
+    }
+
+    private boolean fillWriteBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        ByteBuffer byteBuffer;
+        while (batchEnd < MAX_GATHER_FRAMES && (byteBuffer = outboundQueue.poll()) != null)
+            writeBatch[batchEnd++] = byteBuffer;
+        return batchEnd > 0;
+    }
+
+    /**
+     * Close the connection, from any thread. Frames still queued are dropped.
+     */
+    public void close() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            return;
+        }
+
+        if (closed)
+            return;
+        closed = true;
+
+        if (selectionKey != null)
+            selectionKey.cancel();
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outboundQueue.clear();
+        for (int i = batchStart; i < batchEnd; i++)
+            writeBatch[i] = null;
+        batchStart = batchEnd = 0;
+        if (compressor != null)
+            compressor.close();
+        handler.onClosed(this);
+    }
+}
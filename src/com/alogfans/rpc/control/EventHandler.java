@@ -0,0 +1,18 @@
+package com.alogfans.rpc.control;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment of a selection key registered on an EventLoop, notified when it is selected.
+ */
+public interface EventHandler {
+    void onSelected(SelectionKey selectionKey);
+
+    /**
+     * Called by the loop when <code>onSelected</code> threw, to release what the key stands
+     * for the way the handler does; the other keys of the loop go on.
+     * @param selectionKey key being handled
+     * @param exception exception thrown
+     */
+    void onFailure(SelectionKey selectionKey, RuntimeException exception);
+}
@@ -0,0 +1,227 @@
+package com.alogfans.rpc.control;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One selector and the thread owning it. Every channel registered here is only read,
+ * written and closed by that thread; other threads hand work over with
+ * <code>execute()</code>, which wakes the selector up when needed.
+ */
+public class EventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    // delayed tasks, only touched by the thread of this loop
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    private long countScheduled = 0;
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        final long deadline;
+        final long sequence;
+        final Runnable task;
+
+        ScheduledTask(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            if (deadline != other.deadline)
+                return Long.compare(deadline - other.deadline, 0);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private volatile Thread thread = null;
+    private volatile boolean running = true;
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Start looping in a new thread.
+     * @return the started thread.
+     */
+    public Thread start() {
+        Thread worker = new Thread(this, name);
+        thread = worker;
+        worker.start();
+        return worker;
+    }
+
+    /**
+     * Run the given task in the thread of this loop, after the current batch of events.
+     * @param task the task, it must not block
+     */
+    public void execute(Runnable task) {
+        pendingTasks.offer(task);
+        if (!inEventLoop())
+            selector.wakeup();
+    }
+
+    /**
+     * Run the given task in the thread of this loop once the delay has elapsed. Delays
+     * below one millisecond are honored by briefly parking the loop before polling.
+     * @param task the task, it must not block
+     * @param delayNanos delay in nanoseconds
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        if (inEventLoop()) {
+            scheduledTasks.offer(new ScheduledTask(deadline, countScheduled++, task));
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduledTasks.offer(new ScheduledTask(deadline, countScheduled++, task));
+            }
+        });
+    }
+
+    /**
+     * Loop in the current thread until <code>close()</code> is called.
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                select();
+                processSelectedKeys();
+                runPendingTasks();
+                runScheduledTasks();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running)
+                e.printStackTrace();
+        } finally {
+            // tasks handed over before close still run, e.g. closing the connections
+            runPendingTasks();
+            closeSelector();
+        }
+    }
+
+    /**
+     * Stop looping and close the channels left. Unless called from this loop, waits until
+     * the tasks handed over before are run and the thread of the loop has ended.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+
+        Thread thread = this.thread;
+        if (thread == null || inEventLoop())
+            return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void select() throws IOException {
+        ScheduledTask nextTask = scheduledTasks.peek();
+        if (nextTask == null) {
+            selector.select();
+            return;
+        }
+
+        long remaining = nextTask.deadline - System.nanoTime();
+        if (remaining >= TimeUnit.MILLISECONDS.toNanos(1)) {
+            selector.select(TimeUnit.NANOSECONDS.toMillis(remaining));
+        } else {
+            if (remaining > 0 && pendingTasks.isEmpty())
+                LockSupport.parkNanos(remaining);
+            selector.selectNow();
+        }
+    }
+
+    private void runScheduledTasks() {
+        ScheduledTask scheduledTask;
+        while ((scheduledTask = scheduledTasks.peek()) != null
+                && scheduledTask.deadline - System.nanoTime() <= 0) {
+            scheduledTasks.poll();
+            try {
+                scheduledTask.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey selectionKey = iterator.next();
+            iterator.remove();
+            if (!selectionKey.isValid())
+                continue;
+            EventHandler handler = (EventHandler) selectionKey.attachment();
+            try {
+                handler.onSelected(selectionKey);
+            } catch (RuntimeException e) {
+                // a broken handler only costs its own channel, the others of the loop go on
+                try {
+                    handler.onFailure(selectionKey, e);
+                } catch (RuntimeException again) {
+                    again.printStackTrace();
+                    selectionKey.cancel();
+                    try {
+                        selectionKey.channel().close();
+                    } catch (IOException closing) {
+                        closing.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeSelector() {
+        for (SelectionKey selectionKey : selector.keys()) {
+            try {
+                selectionKey.channel().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.alogfans.rpc.control;
+
+/**
+ * Where RpcServer runs the provided methods once a request has been decoded.
+ */
+public enum ExecutionMode {
+    /** A fixed number of worker threads fed by a bounded queue. */
+    FIXED_POOL,
+    /** A work-stealing pool, with the same bound on queued requests. */
+    WORK_STEALING,
+    /** Directly on the I/O thread, only for trivially cheap methods that never block. */
+    DIRECT,
+    /**
+     * One virtual thread per request, for providers doing blocking I/O. Bound it with the
+     * concurrency limits of Provider instead of a queue. Before Java 21 the requests run on
+     * the bounded pool of <code>FIXED_POOL</code>, never on a thread per request, as
+     * <code>RpcServer.isVirtualThreadSupported</code> tells.
+     */
+    VIRTUAL_THREAD
+}
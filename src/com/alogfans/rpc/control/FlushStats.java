@@ -0,0 +1,39 @@
+package com.alogfans.rpc.control;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of outbound writes shared by the connections of one RpcClient or RpcServer,
+ * showing how well frames are coalesced into write system calls.
+ */
+public class FlushStats {
+    private final LongAdder countFrames = new LongAdder();
+    private final LongAdder countWrites = new LongAdder();
+
+    void record(int frames, int writes) {
+        countFrames.add(frames);
+        countWrites.add(writes);
+    }
+
+    public long getCountFrames() {
+        return countFrames.sum();
+    }
+
+    public long getCountWrites() {
+        return countWrites.sum();
+    }
+
+    /**
+     * @return the average number of frames written per write system call.
+     */
+    public double getFramesPerWrite() {
+        long writes = countWrites.sum();
+        return writes == 0 ? 0 : (double) countFrames.sum() / writes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames=%d, writes=%d, frames/write=%.2f",
+                getCountFrames(), getCountWrites(), getFramesPerWrite());
+    }
+}
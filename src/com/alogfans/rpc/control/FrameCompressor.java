@@ -0,0 +1,153 @@
+package com.alogfans.rpc.control;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the frames of one connection, once both ends agreed on it in the
+ * handshake. Only frames larger than the threshold are compressed, and only if that makes
+ * them smaller; a compressed frame has the top bit of its length header set, and its body
+ * starts with the length of the original body.
+ *
+ * Frames are encoded by any sending thread, so deflaters are pooled and reused rather than
+ * shared; frames are decoded by the event loop alone, which needs a single inflater.
+ */
+public class FrameCompressor {
+    public static final int FLAG_COMPRESSED = 1 << 31;
+    public static final int LENGTH_MASK = ~FLAG_COMPRESSED;
+
+    private static final int MAX_POOLED_DEFLATERS = 4;
+
+    private final int threshold;
+    private final int level;
+
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private Inflater inflater = null;
+    private volatile boolean closed = false;
+
+    private final LongAdder countCompressed = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * @param threshold smallest frame body in bytes worth compressing
+     * @param level deflate level, e.g. <code>Deflater.BEST_SPEED</code>
+     */
+    public FrameCompressor(int threshold, int level) {
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * Compress the frame if it is large enough and compressible, in the sending thread.
+     * @param frame frame with its length header
+     * @return the compressed frame, or the given one unchanged.
+     */
+    public ByteBuffer compress(ByteBuffer frame) {
+        int bodyLength = frame.remaining() - Integer.BYTES;
+        if (bodyLength < threshold || bodyLength <= Integer.BYTES * 2 || closed)
+            return frame;
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(level);
+        try {
+            deflater.setInput(frame.array(), frame.arrayOffset() + frame.position() + Integer.BYTES, bodyLength);
+            deflater.finish();
+
+            // a result not smaller than the original is not worth it, so that size is enough
+            byte[] compressed = new byte[Integer.BYTES + bodyLength];
+            int offset = Integer.BYTES * 2;
+            while (!deflater.finished() && offset < compressed.length)
+                offset += deflater.deflate(compressed, offset, compressed.length - offset);
+            if (!deflater.finished())
+                return frame;
+
+            ByteBuffer compressedFrame = ByteBuffer.wrap(compressed, 0, offset);
+            compressedFrame.putInt(0, (offset - Integer.BYTES) | FLAG_COMPRESSED);
+            compressedFrame.putInt(Integer.BYTES, bodyLength);
+            countCompressed.increment();
+            bytesSaved.add(compressed.length - offset);
+            return compressedFrame;
+        } finally {
+            deflater.reset();
+            if (closed || deflaters.size() >= MAX_POOLED_DEFLATERS)
+                deflater.end();
+            else
+                deflaters.offer(deflater);
+        }
+    }
+
+    /**
+     * Restore the body of a compressed frame, in the thread of the event loop.
+     * @param bytes buffer holding the compressed body
+     * @param offset start of the body in the buffer
+     * @param length length of the compressed body
+     * @param maxLength largest body accepted once decompressed
+     * @return the original body.
+     * @throws IOException if the body is corrupted or too large
+     */
+    public byte[] decompress(byte[] bytes, int offset, int length, int maxLength) throws IOException {
+        if (length < Integer.BYTES)
+            throw new IOException("Truncated compressed frame");
+        int originalLength = ByteBuffer.wrap(bytes, offset, Integer.BYTES).getInt();
+        if (originalLength < 0 || originalLength > maxLength)
+            throw new IOException("Illegal frame length " + originalLength);
+
+        if (inflater == null)
+            inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset + Integer.BYTES, length - Integer.BYTES);
+            byte[] original = new byte[originalLength];
+            int position = 0;
+            while (!inflater.finished()) {
+                int count = inflater.inflate(original, position, originalLength - position);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary() || position == originalLength))
+                    break;
+                position += count;
+            }
+            if (!inflater.finished() || position != originalLength)
+                throw new IOException("Corrupted compressed frame");
+            return original;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed frame", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Release the native memory of the pooled deflaters and the inflater, once the connection
+     * is closed. Deflaters still in use are released when they come back.
+     */
+    public void close() {
+        closed = true;
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null)
+            deflater.end();
+        if (inflater != null)
+            inflater.end();
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return frames sent compressed.
+     */
+    public long getCountCompressed() {
+        return countCompressed.sum();
+    }
+
+    /**
+     * @return bytes not sent thanks to compression.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+}
@@ -0,0 +1,111 @@
+package com.alogfans.rpc.control;
+
+import com.alogfans.rpc.marshal.Codec;
+import com.alogfans.rpc.marshal.MarshalHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * Per-connection decoder state, attached to the selection key of the connection. Bytes
+ * are accumulated in one buffer across reads, so frames may be split anywhere; every
+ * complete frame in the buffer is decoded in place. The buffer only grows when a single
+ * frame does not fit, and keeps its size for later frames of the connection.
+ */
+public class FrameDecoder {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_FRAME_SIZE = 256 << 20;
+
+    private final Codec codec;
+    private ByteBuffer buffer;
+    private FrameCompressor compressor = null;
+
+    public FrameDecoder(Codec codec) {
+        this.codec = codec;
+        this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Accept compressed frames, once negotiated, in the thread of the event loop.
+     * @param compressor compressor of the connection
+     */
+    public void setCompressor(FrameCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Read everything available from the channel and hand each decoded packet over.
+     * @param socketChannel readable channel of the connection
+     * @param packetConsumer receives the packets in arrival order
+     * @return false if the peer has closed the connection.
+     * @throws IOException
+     */
+    public boolean onReadable(SocketChannel socketChannel, Consumer<Object> packetConsumer) throws IOException {
+        while (true) {
+            int countBytes = socketChannel.read(buffer);
+            if (countBytes < 0)
+                return false;
+            if (countBytes == 0)
+                return true;
+
+            buffer.flip();
+            decodeFrames(packetConsumer);
+            buffer.compact();
+        }
+    }
+
+    private void decodeFrames(Consumer<Object> packetConsumer) throws IOException {
+        while (buffer.remaining() >= Integer.BYTES) {
+            int position = buffer.position();
+            int header = buffer.getInt(position);
+            boolean compressed = (header & FrameCompressor.FLAG_COMPRESSED) != 0;
+            int packetLength = header & FrameCompressor.LENGTH_MASK;
+            if (compressed && compressor == null)
+                throw new IOException("Compressed frame without compression negotiated");
+            if (packetLength > MAX_FRAME_SIZE)
+                throw new IOException("Illegal frame length " + packetLength);
+
+            int frameLength = Integer.BYTES + packetLength;
+            if (buffer.remaining() < frameLength) {
+                // partial frame, wait for more bytes and make sure they fit
+                ensureCapacity(frameLength);
+                return;
+            }
+
+            Object packet = null;
+            try {
+                byte[] bytes = buffer.array();
+                int offset = buffer.arrayOffset() + position + Integer.BYTES;
+                int length = packetLength;
+                if (compressed) {
+                    bytes = compressor.decompress(bytes, offset, length, MAX_FRAME_SIZE);
+                    offset = 0;
+                    length = bytes.length;
+                }
+                packet = MarshalHelper.decodeFrame(codec, bytes, offset, length);
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+            buffer.position(position + frameLength);
+
+            if (packet != null)
+                packetConsumer.accept(packet);
+        }
+    }
+
+    private void ensureCapacity(int frameLength) {
+        if (frameLength <= buffer.capacity())
+            return;
+
+        int capacity = buffer.capacity();
+        while (capacity < frameLength)
+            capacity <<= 1;
+
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        grown.put(buffer);
+        grown.flip();
+        buffer = grown;
+    }
+}
@@ -0,0 +1,17 @@
+package com.alogfans.rpc.control;
+
+/**
+ * What RpcClient does with a call once the calls in flight on its connection or invoker
+ * reach the configured maximum.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait for a call to finish, up to the timeout of the call. Asynchronous calls never
+     * block their caller, they are delayed as with DELAY.
+     */
+    BLOCK,
+    /** Fail the call at once with a RejectedExecutionException. */
+    FAIL_FAST,
+    /** Return the future at once and send the call when another one finishes; synchronous calls wait as with BLOCK. */
+    DELAY
+}
@@ -0,0 +1,117 @@
+package com.alogfans.rpc.control;
+
+import com.alogfans.rpc.async.InFlightWindow;
+import com.alogfans.rpc.balance.Endpoint;
+import com.alogfans.rpc.marshal.MethodTable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One connection of the pool kept by RpcClient for an endpoint, with the method table fetched in its own
+ * handshake, kept up to date by the server, and the counters used to choose among the pool.
+ */
+public class PooledConnection {
+    private final int index;
+    private final Endpoint endpoint;
+    private final Connection connection;
+    private volatile MethodTable methodTable;
+
+    // credits of the calls this connection may carry at once, null if unbounded
+    private final InFlightWindow window;
+
+    // calls sent on this connection and not finished yet
+    private final AtomicInteger pendingCalls = new AtomicInteger();
+    private final LongAdder countRequests = new LongAdder();
+    private final LongAdder countResponses = new LongAdder();
+    private final LongAdder countFailures = new LongAdder();
+
+    PooledConnection(int index, Endpoint endpoint, Connection connection, MethodTable methodTable, InFlightWindow window) {
+        this.index = index;
+        this.endpoint = endpoint;
+        this.connection = connection;
+        this.methodTable = methodTable;
+        this.window = window;
+    }
+
+    void onRequestSent() {
+        pendingCalls.incrementAndGet();
+        countRequests.increment();
+        endpoint.onCallStarted();
+    }
+
+    void onResponseReceived() {
+        countResponses.increment();
+    }
+
+    void onCallFinished(boolean failed) {
+        pendingCalls.decrementAndGet();
+        if (failed)
+            countFailures.increment();
+        if (window != null)
+            window.release();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public MethodTable getMethodTable() {
+        return methodTable;
+    }
+
+    /**
+     * Replace the method table by one published later by the server. IDs are never reused,
+     * so calls already sent with the former table are still answered by the same method.
+     */
+    synchronized void setMethodTable(MethodTable methodTable) {
+        // tables only grow, a late one must not undo a newer one
+        if (methodTable.size() >= this.methodTable.size())
+            this.methodTable = methodTable;
+    }
+
+    /**
+     * @return credits of the calls in flight on this connection, null if unbounded.
+     */
+    public InFlightWindow getWindow() {
+        return window;
+    }
+
+    public boolean isClosed() {
+        return connection.isClosed();
+    }
+
+    public int getPendingCalls() {
+        return pendingCalls.get();
+    }
+
+    public long getCountRequests() {
+        return countRequests.sum();
+    }
+
+    public long getCountResponses() {
+        return countResponses.sum();
+    }
+
+    /**
+     * @return calls abandoned before their response, e.g. timed out or cancelled.
+     */
+    public long getCountFailures() {
+        return countFailures.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connection #%d to %s:%d: pending=%d, requests=%d, responses=%d, failures=%d%s",
+                index, endpoint.getHostname(), endpoint.getPort(), getPendingCalls(), getCountRequests(), getCountResponses(), getCountFailures(),
+                isClosed() ? " (closed)" : "");
+    }
+}
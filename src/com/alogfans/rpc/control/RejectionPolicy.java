@@ -0,0 +1,11 @@
+package com.alogfans.rpc.control;
+
+/**
+ * What RpcServer does with a request once the worker queue is full.
+ */
+public enum RejectionPolicy {
+    /** Answer at once with a "server busy" response, the caller sees a RejectedExecutionException. */
+    SERVER_BUSY,
+    /** Run the request on the I/O thread, which slows down reading of further requests. */
+    CALLER_RUNS
+}
@@ -0,0 +1,189 @@
+package com.alogfans.rpc.control;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs decoded requests of RpcServer according to their execution mode. Pools are created
+ * on first use and the number of queued requests is always bounded, so bursts end up in
+ * the rejection policy instead of unbounded memory.
+ */
+class RequestExecutor {
+    private final int workerThreads;
+    private final int queueCapacity;
+    private final RejectionPolicy rejectionPolicy;
+
+    private ThreadPoolExecutor fixedPool = null;
+    private ForkJoinPool workStealingPool = null;
+    private ExecutorService virtualThreadExecutor = null;
+    private boolean virtualThreadsChecked = false;
+    private volatile boolean shutdown = false;
+
+    // requests admitted to the work-stealing pool and not finished yet
+    private final AtomicInteger workStealingLoad = new AtomicInteger();
+
+    RequestExecutor(int workerThreads, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        this.workerThreads = workerThreads;
+        this.queueCapacity = queueCapacity;
+        this.rejectionPolicy = rejectionPolicy;
+    }
+
+    /**
+     * Run the given request.
+     * @param executionMode where to run it
+     * @param task invocation of the provider, writing its response
+     * @return false if the request was rejected and nothing has been run.
+     */
+    boolean execute(ExecutionMode executionMode, Runnable task) {
+        if (shutdown)
+            return false;
+        switch (executionMode) {
+            case DIRECT:
+                task.run();
+                return true;
+            case WORK_STEALING:
+                return executeWorkStealing(task);
+            case VIRTUAL_THREAD:
+                ExecutorService executor = getVirtualThreadExecutor();
+                if (executor == null) {
+                    // no virtual threads on this runtime, stay within the bounded pool
+                    return executeFixed(task);
+                }
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    return reject(task);
+                }
+                return true;
+            default:
+                return executeFixed(task);
+        }
+    }
+
+    private boolean executeFixed(Runnable task) {
+        try {
+            getFixedPool().execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return reject(task);
+        }
+    }
+
+    private boolean executeWorkStealing(Runnable task) {
+        if (workStealingLoad.incrementAndGet() > workerThreads + queueCapacity) {
+            workStealingLoad.decrementAndGet();
+            return reject(task);
+        }
+
+        try {
+            getWorkStealingPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        workStealingLoad.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
+            workStealingLoad.decrementAndGet();
+            return reject(task);
+        }
+        return true;
+    }
+
+    private boolean reject(Runnable task) {
+        if (rejectionPolicy == RejectionPolicy.CALLER_RUNS && !shutdown) {
+            task.run();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop the pools once the server is closed, so that their threads end. Invocations
+     * already running or queued still complete, further requests are rejected.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        if (fixedPool != null)
+            fixedPool.shutdown();
+        if (workStealingPool != null)
+            workStealingPool.shutdown();
+        if (virtualThreadExecutor != null)
+            virtualThreadExecutor.shutdown();
+    }
+
+    private synchronized ThreadPoolExecutor getFixedPool() {
+        if (fixedPool == null) {
+            fixedPool = new ThreadPoolExecutor(workerThreads, workerThreads,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new WorkerThreadFactory("rpc-worker-"),
+                    new ThreadPoolExecutor.AbortPolicy());
+            if (shutdown)
+                fixedPool.shutdown();
+        }
+        return fixedPool;
+    }
+
+    private synchronized ForkJoinPool getWorkStealingPool() {
+        if (workStealingPool == null) {
+            workStealingPool = new ForkJoinPool(workerThreads,
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            if (shutdown)
+                workStealingPool.shutdown();
+        }
+        return workStealingPool;
+    }
+
+    /**
+     * @return the executor of virtual threads, null before Java 21.
+     */
+    private synchronized ExecutorService getVirtualThreadExecutor() {
+        if (!virtualThreadsChecked) {
+            virtualThreadsChecked = true;
+            try {
+                // looked up reflectively, we still run on runtimes without virtual threads
+                virtualThreadExecutor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+                if (shutdown)
+                    virtualThreadExecutor.shutdown();
+            } catch (ReflectiveOperationException e) {
+                // runs on the fixed pool, as isVirtualThreadSupported tells
+            }
+        }
+        return virtualThreadExecutor;
+    }
+
+    /**
+     * @return whether the runtime has virtual threads, from Java 21 on.
+     */
+    static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger countThreads = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + countThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
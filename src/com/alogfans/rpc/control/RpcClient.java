@@ -1,40 +1,136 @@
 package com.alogfans.rpc.control;
 
+import com.alogfans.rpc.async.HashedWheelTimer;
+import com.alogfans.rpc.async.InFlightWindow;
+import com.alogfans.rpc.balance.Endpoint;
+import com.alogfans.rpc.balance.LoadBalancer;
+import com.alogfans.rpc.balance.PowerOfTwoChoicesLoadBalancer;
+import com.alogfans.rpc.marshal.BatchRequestPacket;
+import com.alogfans.rpc.marshal.BinaryCodec;
+import com.alogfans.rpc.marshal.CancelPacket;
+import com.alogfans.rpc.marshal.Codec;
+import com.alogfans.rpc.marshal.HandshakePacket;
 import com.alogfans.rpc.marshal.MarshalHelper;
+import com.alogfans.rpc.marshal.MethodTable;
 import com.alogfans.rpc.marshal.RequestPacket;
 import com.alogfans.rpc.marshal.ResponsePacket;
+import com.alogfans.rpc.marshal.StreamPacket;
 import com.alogfans.rpc.stub.Invoker;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiConsumer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.zip.Deflater;
 
 /**
  * RPC client manager. Its job is to establish the connection with RpcServer,
  * and dispatch the corresponding marshaled object to invokers.
  *
+ * Several servers providing the same services may be added as endpoints, each call is
+ * routed to one of them by the load balancer. Endpoints failing or answering too slowly
+ * are ejected for a while.
+ *
  * Created by Alogfans on 2015/8/5.
  */
 public class RpcClient {
-    private final int BUFFER_SIZE = 4096;
+    // route of a call finished before it was sent, e.g. timed out while waiting for a credit
+    private static final Object FINISHED = new Object();
+    private static final AtomicReferenceFieldUpdater<RequestPacket, Object> ROUTE_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(RequestPacket.class, Object.class, "route");
 
     private String hostname;
     private int port;
     private int timeout;
+    private Codec codec = new BinaryCodec();
+
+    // outbound frames of all connections are coalesced into gathering writes
+    private long coalescingWindow = 0;
+    private final FlushStats flushStats = new FlushStats();
+
+    // listeners of async calls run here, never on the selector thread
+    private Executor callbackExecutor = ForkJoinPool.commonPool();
+
+    // deadlines of all outstanding async calls, created on first use
+    private HashedWheelTimer timer = null;
 
     // all invokers we will listening to, for others will just ignore them.
-    private ConcurrentHashMap<Class<?>, Invoker> invokerHashMap;
+    // keyed by interface name, as method tables of servers only carry names
+    private ConcurrentHashMap<String, Invoker> invokerHashMap;
+
+    // call IDs are unique among all invokers sharing these connections
+    private AtomicLong requestIdGenerator = new AtomicLong();
+
+    // servers to call, setHostname and setPort alone make a single endpoint
+    private List<Endpoint> endpoints = new ArrayList<>();
+    private LoadBalancer loadBalancer = new PowerOfTwoChoicesLoadBalancer();
+
+    // ejection of endpoints after consecutive failed or slow calls
+    private int maxFailures = 5;
+    private long ejectionTime = TimeUnit.SECONDS.toNanos(10);
+    private long slowCallThreshold = 0;
+
+    // connections to each endpoint, each call goes to the one with the fewest pending calls
+    // slots of a closed or never opened connection hold null, or the closed connection
+    private int poolSize = 1;
+    private volatile List<PooledConnection> connections = Collections.emptyList();
+    private volatile PooledConnection[][] endpointConnections = new PooledConnection[0][];
+    private EventLoop[] eventLoops = new EventLoop[0];
+
+    // reopening of closed connections, the delay doubles after each failed attempt
+    private long reconnectMinDelay = TimeUnit.MILLISECONDS.toNanos(100);
+    private long reconnectMaxDelay = TimeUnit.SECONDS.toNanos(10);
+    private ExecutorService reconnectExecutor = null;
+    private volatile boolean closed = false;
+
+    // bound of the calls in flight on each connection, 0 for unbounded
+    private int maxInFlightPerConnection = 0;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    // frames larger than this are compressed on connections agreeing on it, 0 to disable
+    private int compressionThreshold = 0;
+
+    private final Connection.Handler connectionHandler = new Connection.Handler() {
+        @Override
+        public void onPacket(Connection connection, Object packet) {
+            if (packet instanceof StreamPacket)
+                dispatchStreamPacket((PooledConnection) connection.attachment(), (StreamPacket) packet);
+            else if (packet instanceof HandshakePacket)
+                updateMethodTable((PooledConnection) connection.attachment(), (HandshakePacket) packet);
+            else
+                dispatchResponsePacket((PooledConnection) connection.attachment(), (ResponsePacket) packet);
+        }
+
+        @Override
+        public void onClosed(Connection connection) {
+            // calls pending on it will never be answered, fail them now instead of timing out
+            for (Invoker invoker : invokerHashMap.values())
+                invoker.abortCalls(connection.attachment(), new ClosedChannelException());
 
-    private SocketChannel socketChannel;
-    private Selector selector;
-    private Thread backgroundWorker = null;
+            PooledConnection pooledConnection = (PooledConnection) connection.attachment();
+            if (pooledConnection != null)
+                scheduleReconnect(pooledConnection.getEndpoint(), slotOf(pooledConnection), reconnectMinDelay);
+        }
+    };
 
     public RpcClient() {
         timeout = Integer.MAX_VALUE;
@@ -56,10 +152,190 @@ public class RpcClient {
         return this;
     }
 
+    /**
+     * Let outbound frames wait up to the given window, so that frames of concurrent calls
+     * share one write system call. By default frames queued within one event loop
+     * iteration are already written together.
+     * @param coalescingWindow window in microseconds, 0 to disable
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setCoalescingWindow(long coalescingWindow) {
+        this.coalescingWindow = TimeUnit.MICROSECONDS.toNanos(coalescingWindow);
+        return this;
+    }
+
+    /**
+     * @return write counters of all connections, including the frames per write system call.
+     */
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Choose how packets are marshaled, the server must use the same codec.
+     * @param codec codec for all frames of this client
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Add a server providing the registered services. Without any endpoint added, the one
+     * given by <code>setHostname</code> and <code>setPort</code> is used.
+     * @param hostname host of the server
+     * @param port port of the server
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient addEndpoint(String hostname, int port) {
+        endpoints.add(new Endpoint(endpoints.size(), hostname, port));
+        return this;
+    }
+
+    /**
+     * @return endpoints of this client, with their live statistics.
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * Choose how calls are spread over the endpoints.
+     * @param loadBalancer balancer of all calls, power of two choices by default
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setLoadBalancer(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+        return this;
+    }
+
+    /**
+     * Take an endpoint out of rotation once calls to it failed several times in a row.
+     * Timed out calls, I/O errors and busy or late servers count as failures, exceptions
+     * thrown by the provided methods do not.
+     * @param maxFailures consecutive failures causing the ejection
+     * @param ejectionTime milliseconds before the endpoint is chosen again
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setEjection(int maxFailures, long ejectionTime) {
+        this.maxFailures = maxFailures;
+        this.ejectionTime = TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+        return this;
+    }
+
+    /**
+     * Count calls answered slower than the threshold as failures of their endpoint.
+     * @param slowCallThreshold threshold in milliseconds, 0 to disable
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setSlowCallThreshold(long slowCallThreshold) {
+        this.slowCallThreshold = TimeUnit.MILLISECONDS.toNanos(slowCallThreshold);
+        return this;
+    }
+
+    /**
+     * Choose how many connections are opened to each endpoint. Each call is sent on the
+     * connection with the fewest pending calls, so a large frame only delays the calls
+     * sharing its connection.
+     * @param poolSize count of connections per endpoint, 1 by default
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Reopen connections once closed, e.g. by a restarting server, as well as those which
+     * could not be opened at first. Attempts back off exponentially from the minimum delay
+     * to the maximum one; the endpoint rejoins the rotation as soon as one succeeds.
+     * @param minDelay milliseconds before the first attempt, 0 to never reconnect
+     * @param maxDelay milliseconds between two attempts at most
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setReconnectBackoff(long minDelay, long maxDelay) {
+        this.reconnectMinDelay = TimeUnit.MILLISECONDS.toNanos(minDelay);
+        this.reconnectMaxDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(maxDelay, minDelay));
+        return this;
+    }
+
+    /**
+     * Bound the calls in flight on each connection, so that an overloaded server cannot make
+     * requests pile up in this client. Calls beyond it are handled by the overflow policy.
+     * @param maxInFlightPerConnection maximum of calls sent and not finished, 0 for unbounded
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+        return this;
+    }
+
+    /**
+     * Choose what happens to calls exceeding the in-flight bound of their connection or invoker.
+     * @param overflowPolicy policy of all calls, BLOCK by default
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Compress the frames larger than the threshold, on connections to servers compressing
+     * as well, which is agreed on during the handshake. Frames below it are sent as they
+     * are, so small calls pay nothing. Applies to connections opened afterwards.
+     * @param compressionThreshold smallest frame body in bytes to compress, 0 to disable
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return connections to all endpoints, with their counters.
+     */
+    public List<PooledConnection> getConnections() {
+        return connections;
+    }
+
     public int getTimeout() {
         return timeout;
     }
 
+    /**
+     * Choose where <code>ResponseCallbackListener</code> of async calls are notified.
+     * Synchronous callers are always woken up directly by the selector thread.
+     * @param callbackExecutor executor for listener callbacks
+     * @return the caller RpcClient itself.
+     */
+    public RpcClient setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return this;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * @return the timer enforcing the deadlines of calls made through this client.
+     */
+    public synchronized HashedWheelTimer getTimer() {
+        if (timer == null)
+            timer = new HashedWheelTimer("rpc-client-timer");
+        return timer;
+    }
+
+    public long nextRequestId() {
+        return requestIdGenerator.incrementAndGet();
+    }
+
     /**
      * Register the given rpc service, and the client will keep track of the response
      * of such invocations.
@@ -67,10 +343,9 @@ public class RpcClient {
      * @return the caller RpcClient itself.
      */
     public RpcClient register(Invoker invoker) throws IllegalArgumentException {
-        if (invokerHashMap.containsKey(invoker.getInterfaceClass()))
+        if (invokerHashMap.putIfAbsent(invoker.getInterfaceClass().getName(), invoker) != null)
             throw new IllegalArgumentException("Invoker object registered.");
 
-        invokerHashMap.put(invoker.getInterfaceClass(), invoker);
         invoker.setRpcClient(this);
         return this;
     }
@@ -82,10 +357,9 @@ public class RpcClient {
      * @return the caller RpcClient itself.
      */
     public RpcClient unregister(Invoker invoker) throws IllegalArgumentException {
-        if (!invokerHashMap.containsKey(invoker.getInterfaceClass()))
+        if (!invokerHashMap.remove(invoker.getInterfaceClass().getName(), invoker))
             throw new IllegalArgumentException("Invoker object not registered.");
 
-        invokerHashMap.remove(invoker.getInterfaceClass(), invoker);
         invoker.setRpcClient(null);
         return this;
     }
@@ -94,149 +368,491 @@ public class RpcClient {
      * Terminate all connections gracefully. Should be the last one
      */
     public void close() {
-        if (backgroundWorker.isAlive()) {
-            backgroundWorker.interrupt();
-            try {
-                socketChannel.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        closed = true;
+        synchronized (this) {
+            if (reconnectExecutor != null)
+                reconnectExecutor.shutdownNow();
+        }
+        // the connections close in their loops, which run those tasks before they stop, so
+        // every call still pending has been aborted once this returns
+        for (PooledConnection pooledConnection : connections)
+            pooledConnection.getConnection().close();
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.close();
+        synchronized (this) {
+            if (timer != null)
+                timer.stop();
+            timer = null;
         }
     }
 
     // ----- Now comes to the implementation dependent part -----
 
     public void establishConnection() {
+        if (endpoints.isEmpty())
+            addEndpoint(hostname, port);
+
+        reconnectExecutor = Executors.newSingleThreadExecutor(new RequestExecutor.WorkerThreadFactory("rpc-client-reconnect-"));
         try {
             prepareNioObjects();
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        backgroundWorker = new Thread(new Runnable() {
-            @Override
-            public void run() {
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.start();
+    }
+
+    private void prepareNioObjects() throws IOException {
+        int countConnections = endpoints.size() * Math.max(poolSize, 1);
+        eventLoops = new EventLoop[Math.min(countConnections, Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < eventLoops.length; i++)
+            eventLoops[i] = new EventLoop("rpc-client-" + i);
+
+        int poolSize = Math.max(this.poolSize, 1);
+        PooledConnection[][] endpointConnections = new PooledConnection[endpoints.size()][poolSize];
+        for (Endpoint endpoint : endpoints) {
+            for (int slot = 0; slot < poolSize; slot++) {
                 try {
-                    while (selector.select() > 0) {
-                        frameProcess();
-                    }
-                    // System.out.print("background: terminate");
+                    int index = endpoint.getIndex() * poolSize + slot;
+                    endpointConnections[endpoint.getIndex()][slot] = openConnection(index, endpoint, eventLoopOf(index));
                 } catch (IOException e) {
+                    // unreachable endpoints are left out until reconnected, the others still serve calls
                     e.printStackTrace();
+                    for (; slot < poolSize; slot++)
+                        scheduleReconnect(endpoint, slot, reconnectMinDelay);
                 }
             }
-        });
-        // backgroundWorker.setDaemon(true);
-        backgroundWorker.start();
+        }
+        installConnections(endpointConnections);
     }
 
-    private void prepareNioObjects() throws IOException {
-        socketChannel = SocketChannel.open();
-        selector = Selector.open();
+    private EventLoop eventLoopOf(int index) {
+        return eventLoops[index % eventLoops.length];
+    }
+
+    private int slotOf(PooledConnection pooledConnection) {
+        return pooledConnection.getIndex() % Math.max(poolSize, 1);
+    }
 
-        socketChannel.socket().setSoTimeout(timeout);
-        socketChannel.socket().setReuseAddress(true);
+    private synchronized void installConnections(PooledConnection[][] endpointConnections) {
+        List<PooledConnection> connections = new ArrayList<>();
+        for (PooledConnection[] pool : endpointConnections) {
+            for (PooledConnection pooledConnection : pool) {
+                if (pooledConnection != null)
+                    connections.add(pooledConnection);
+            }
+        }
+        this.connections = Collections.unmodifiableList(connections);
+        this.endpointConnections = endpointConnections;
+    }
 
-        socketChannel.connect(new InetSocketAddress(hostname, port));
+    /**
+     * Try to reopen the connection of the given slot once the delay has elapsed.
+     */
+    private void scheduleReconnect(final Endpoint endpoint, final int slot, final long delay) {
+        if (reconnectMinDelay <= 0)
+            return;
+        HashedWheelTimer timer;
+        synchronized (this) {
+            // checked under the lock, close must not miss a timer created meanwhile
+            if (closed)
+                return;
+            timer = getTimer();
+        }
+        timer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                // opening blocks for the handshake, which must not delay the deadlines of calls
+                try {
+                    reconnectExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            reconnect(endpoint, slot, delay);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // closed meanwhile
+                }
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
 
-        socketChannel.configureBlocking(false);
-        socketChannel.register(selector, SelectionKey.OP_READ);
+    private void reconnect(Endpoint endpoint, int slot, long delay) {
+        if (closed)
+            return;
+        int index = endpoint.getIndex() * Math.max(poolSize, 1) + slot;
+        PooledConnection pooledConnection;
+        try {
+            pooledConnection = openConnection(index, endpoint, eventLoopOf(index));
+        } catch (IOException e) {
+            scheduleReconnect(endpoint, slot, Math.min(delay * 2, reconnectMaxDelay));
+            return;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                pooledConnection.getConnection().close();
+                return;
+            }
+            PooledConnection[][] endpointConnections = this.endpointConnections.clone();
+            endpointConnections[endpoint.getIndex()] = endpointConnections[endpoint.getIndex()].clone();
+            endpointConnections[endpoint.getIndex()][slot] = pooledConnection;
+            installConnections(endpointConnections);
+        }
+        // the latency measured before the restart would keep the balancer away from it
+        endpoint.onReconnected();
     }
 
-    public void frameProcess() throws IOException {
-        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-        while (iterator.hasNext()) {
-            SelectionKey selectionKey = iterator.next();
-            iterator.remove();
-            if (selectionKey.isReadable()) {
-                onReadRequests();
+    private PooledConnection openConnection(int index, Endpoint endpoint, EventLoop eventLoop) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.socket().setReuseAddress(true);
+
+            // the socket timeout would not bound reads of the channel, only the connect
+            socketChannel.socket().connect(new InetSocketAddress(endpoint.getHostname(), endpoint.getPort()), timeout);
+            HandshakePacket handshakePacket = performHandshake(socketChannel);
+            MethodTable methodTable = new MethodTable(handshakePacket.signatures);
+
+            Connection connection = new Connection(socketChannel, eventLoop, codec, connectionHandler)
+                    .setCoalescingWindow(coalescingWindow)
+                    .setFlushStats(flushStats);
+            if (handshakePacket.hasFeature(HandshakePacket.FEATURE_COMPRESSION))
+                connection.setCompressor(new FrameCompressor(compressionThreshold, Deflater.BEST_SPEED));
+            InFlightWindow window = maxInFlightPerConnection > 0
+                    ? new InFlightWindow(maxInFlightPerConnection, callbackExecutor) : null;
+            PooledConnection pooledConnection = new PooledConnection(index, endpoint, connection, methodTable, window);
+            connection.attach(pooledConnection).register();
+            return pooledConnection;
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Fetch the method table of the server and agree on the features of the connection,
+     * before the channel is handed over to its event loop. Bounded by the timeout of this
+     * client, a server whose loop is stuck must not block the caller forever.
+     */
+    private HandshakePacket performHandshake(SocketChannel socketChannel) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        socketChannel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            int features = compressionThreshold > 0 ? HandshakePacket.FEATURE_COMPRESSION : 0;
+            ByteBuffer byteBuffer = MarshalHelper.encodeFrame(codec, new HandshakePacket().setFeatures(features));
+            while (true) {
+                socketChannel.write(byteBuffer);
+                if (!byteBuffer.hasRemaining())
+                    break;
+                awaitHandshake(socketChannel, selector, SelectionKey.OP_WRITE, deadline);
             }
+
+            ByteBuffer headerBuffer = ByteBuffer.allocate(Integer.BYTES);
+            readFully(socketChannel, selector, headerBuffer, deadline);
+            int packetLength = headerBuffer.getInt(0);
+            if (packetLength < 0)
+                throw new IOException("Illegal handshake length " + packetLength);
+
+            ByteBuffer bodyBuffer = ByteBuffer.allocate(packetLength);
+            readFully(socketChannel, selector, bodyBuffer, deadline);
+
+            return (HandshakePacket) MarshalHelper.decodeFrame(codec, bodyBuffer.array(), 0, packetLength);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Handshake failed", e);
+        }
+    }
+
+    private void readFully(SocketChannel socketChannel, Selector selector, ByteBuffer byteBuffer,
+                           long deadline) throws IOException {
+        while (true) {
+            if (socketChannel.read(byteBuffer) < 0)
+                throw new EOFException("Connection closed during handshake");
+            if (!byteBuffer.hasRemaining())
+                return;
+            awaitHandshake(socketChannel, selector, SelectionKey.OP_READ, deadline);
         }
     }
 
-    private void onReadRequests() throws IOException {
-        ByteBuffer byteBuffer;
-        byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private void awaitHandshake(SocketChannel socketChannel, Selector selector, int interestOps,
+                                long deadline) throws IOException {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0)
+            throw new SocketTimeoutException("No handshake within " + timeout + " ms");
+        socketChannel.register(selector, interestOps);
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+    }
 
-        byteBuffer.clear();
-        int countBytes = socketChannel.read(byteBuffer);
-        byteBuffer.flip();
+    private void dispatchResponsePacket(PooledConnection pooledConnection, ResponsePacket responsePacket) {
+        if (responsePacket == null)
+            return;
+
+        pooledConnection.onResponseReceived();
+        String interfaceName = pooledConnection.getMethodTable().interfaceNameOf(responsePacket.methodId);
+        Invoker invoker = interfaceName == null ? null : invokerHashMap.get(interfaceName);
+        if (invoker == null) {          // is dead, just ignore them.
+            return;
+        }
 
-        int cursor = 0;
-        while (cursor < countBytes) {
-            byte[] marshallBytes = readBytes(socketChannel, byteBuffer, 4);
-            int packetLength = MarshalHelper.bytesToInt32(marshallBytes);
+        // cheap enough for the selector thread, listeners are handed to the callback executor
+        invoker.notifyResponse(responsePacket);
+    }
 
-            byte[] marshallObject = readBytes(socketChannel, byteBuffer, packetLength);
-            cursor += Integer.BYTES + packetLength;
+    /**
+     * Take the method table the server publishes when a provider is registered after this
+     * connection was set up, so that its methods become reachable without reconnecting.
+     */
+    private void updateMethodTable(PooledConnection pooledConnection, HandshakePacket handshakePacket) {
+        pooledConnection.setMethodTable(new MethodTable(handshakePacket.signatures));
+    }
 
-            ResponsePacket responsePacket = null;
+    private void dispatchStreamPacket(PooledConnection pooledConnection, StreamPacket streamPacket) {
+        if (streamPacket.type != StreamPacket.TYPE_DATA)
+            pooledConnection.onResponseReceived();
+        String interfaceName = pooledConnection.getMethodTable().interfaceNameOf(streamPacket.methodId);
+        Invoker invoker = interfaceName == null ? null : invokerHashMap.get(interfaceName);
+        if (invoker != null)
+            invoker.notifyStream(streamPacket);
+    }
 
-            try {
-                responsePacket = (ResponsePacket) MarshalHelper.byteToObject(marshallObject);
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+    /**
+     * Pick the endpoint of the call by the load balancer, among the connected endpoints
+     * not ejected. If all of them are ejected, they are all tried rather than failing.
+     */
+    private Endpoint selectEndpoint(RequestPacket requestPacket) {
+        List<Endpoint> endpoints = this.endpoints;
+        if (endpoints.size() == 1)
+            return endpoints.get(0);
+
+        long now = System.nanoTime();
+        List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (isConnected(endpoint) && !endpoint.isEjected(now))
+                candidates.add(endpoint);
+        }
+        if (candidates.isEmpty()) {
+            for (Endpoint endpoint : endpoints) {
+                if (isConnected(endpoint))
+                    candidates.add(endpoint);
             }
+        }
+
+        if (candidates.isEmpty())
+            return endpoints.get(0);
+        if (candidates.size() == 1)
+            return candidates.get(0);
+        return loadBalancer.select(candidates, requestPacket);
+    }
+
+    private boolean isConnected(Endpoint endpoint) {
+        for (PooledConnection pooledConnection : endpointConnections[endpoint.getIndex()]) {
+            if (pooledConnection != null && !pooledConnection.isClosed())
+                return true;
+        }
+        return false;
+    }
 
-            dispatchResponsePacket(responsePacket);
+    /**
+     * Pick the open connection with the fewest pending calls. The scan starts at a different
+     * connection for each call, so ties are spread over the pool.
+     */
+    private PooledConnection selectConnection(RequestPacket requestPacket) {
+        PooledConnection[] connections = endpointConnections[selectEndpoint(requestPacket).getIndex()];
+        if (connections.length == 1)
+            return connections[0];
+
+        PooledConnection selected = null;
+        PooledConnection closed = null;
+        int start = (int) (requestPacket.requestId % connections.length);
+        for (int i = 0; i < connections.length; i++) {
+            PooledConnection candidate = connections[(start + i) % connections.length];
+            if (candidate == null)
+                continue;
+            if (candidate.isClosed()) {
+                closed = candidate;
+                continue;
+            }
+            if (selected == null || candidate.getPendingCalls() < selected.getPendingCalls())
+                selected = candidate;
         }
+        // all closed, the send below fails and reports it
+        return selected != null ? selected : closed;
     }
 
+    public void sendRequestPacket(RequestPacket requestPacket) {
+        sendRequestPacket(requestPacket, false);
+    }
 
-    private byte[] readBytes(SocketChannel socketChannel, ByteBuffer byteBuffer, int countBytes)  throws IOException {
-        byte[] result = new byte[countBytes];
-        int firstBytes = byteBuffer.limit() - byteBuffer.position();
-        if (firstBytes < countBytes) {
-            // need more content, first read it fully
-            byteBuffer.get(result, 0, firstBytes);
+    /**
+     * Send the call on a connection, following the overflow policy if the connection has no
+     * credit left.
+     * @param requestPacket call to send
+     * @param async whether the caller must not be blocked: with BLOCK the call is then
+     *              delayed as with DELAY
+     */
+    public void sendRequestPacket(RequestPacket requestPacket, boolean async) {
+        PooledConnection pooledConnection = selectConnection(requestPacket);
+        if (pooledConnection == null) {
+            notifyFailure(requestPacket, new ConnectException("No endpoint connected"));
+            return;
+        }
 
-            // read again
-            ByteBuffer tinyByteBuffer;
-            tinyByteBuffer = ByteBuffer.allocate(countBytes - firstBytes);
-            tinyByteBuffer.clear();
-            socketChannel.read(tinyByteBuffer);
-            tinyByteBuffer.flip();
+        InFlightWindow window = pooledConnection.getWindow();
+        if (window == null || window.tryAcquire()) {
+            sendRequestPacket(pooledConnection, requestPacket);
+            return;
+        }
 
-            tinyByteBuffer.get(result, firstBytes, countBytes - firstBytes);
-        } else {
-            byteBuffer.get(result);
+        OverflowPolicy overflowPolicy = async && this.overflowPolicy == OverflowPolicy.BLOCK
+                ? OverflowPolicy.DELAY : this.overflowPolicy;
+        switch (overflowPolicy) {
+            case FAIL_FAST:
+                notifyFailure(requestPacket, new RejectedExecutionException("Too many calls in flight on " + pooledConnection));
+                break;
+            case DELAY:
+                if (!window.delay(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendRequestPacket(pooledConnection, requestPacket);
+                    }
+                })) {
+                    notifyFailure(requestPacket, new RejectedExecutionException("Too many calls delayed on " + pooledConnection));
+                }
+                break;
+            default:
+                try {
+                    long timeout = requestPacket.timeout > 0 ? requestPacket.timeout : Long.MAX_VALUE;
+                    if (window.acquire(timeout, TimeUnit.MILLISECONDS))
+                        sendRequestPacket(pooledConnection, requestPacket);
+                    else
+                        notifyFailure(requestPacket, new TimeoutException("No call finished on " + pooledConnection + " within " + timeout + " ms"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    notifyFailure(requestPacket, e);
+                }
+                break;
         }
-        return result;
     }
 
-
-    private void dispatchResponsePacket(ResponsePacket responsePacket) {
-        if (responsePacket == null)
+    /**
+     * Send the call on the connection, holding one of its credits if it is bounded.
+     */
+    private void sendRequestPacket(PooledConnection pooledConnection, RequestPacket requestPacket) {
+        // the call may have been finished while waiting for the credit
+        if (!ROUTE_UPDATER.compareAndSet(requestPacket, null, pooledConnection)) {
+            if (pooledConnection.getWindow() != null)
+                pooledConnection.getWindow().release();
             return;
+        }
+        requestPacket.sendTime = System.nanoTime();
+        pooledConnection.onRequestSent();
 
-        Invoker invoker = invokerHashMap.get(responsePacket.interfaceClass);
-        if (invoker == null) {          // is dead, just ignore them.
+        if (!resolveMethodIds(pooledConnection.getMethodTable(), requestPacket)) {
+            // answer on behalf of the server, it does not know such method at all
+            notifyFailure(requestPacket, new ClassNotFoundException("Such class not provided"));
             return;
         }
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                invoker.notifyResponse(responsePacket);
+        try {
+            pooledConnection.getConnection().send(requestPacket);
+        } catch (IOException e) {
+            // not marshaled or not connected, the request never leaves this client
+            notifyFailure(requestPacket, e);
+        }
+    }
+
+    /**
+     * Map the signature of the call, or of each call of a batch, to the method ID of the
+     * server at the other end of the connection.
+     * @return false if the server does not provide one of the methods.
+     */
+    private boolean resolveMethodIds(MethodTable methodTable, RequestPacket requestPacket) {
+        if (requestPacket instanceof BatchRequestPacket) {
+            for (RequestPacket batched : ((BatchRequestPacket) requestPacket).requests) {
+                if (!resolveMethodIds(methodTable, batched))
+                    return false;
             }
-        }).start();
+        }
+
+        int methodId = methodTable.idOf(requestPacket.signature);
+        if (methodId < 0)
+            return false;
+        requestPacket.methodId = methodId;
+        return true;
     }
 
-    public void sendRequestPacket(RequestPacket requestPacket) {
+    /**
+     * Answer the call on behalf of the server, it failed before reaching it.
+     */
+    private void notifyFailure(RequestPacket requestPacket, Exception exception) {
+        invokerHashMap.get(requestPacket.interfaceClass.getName()).notifyResponse(new ResponsePacket()
+                .copyFromRequest(requestPacket)
+                .setException(exception));
+    }
+
+    /**
+     * Tell the server that nobody waits for the call any more, on the connection it was
+     * sent on. Best effort, the call may have been answered meanwhile.
+     * @param requestPacket the abandoned call
+     */
+    public void cancelRequestPacket(RequestPacket requestPacket) {
+        if (!(requestPacket.route instanceof PooledConnection))
+            return;
+        PooledConnection pooledConnection = (PooledConnection) requestPacket.route;
+
         try {
-            ByteBuffer byteBuffer;
-            byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-
-            byte[] marshalObject = MarshalHelper.objectToBytes(requestPacket);
-            byte[] marshalHeader = MarshalHelper.int32ToBytes(marshalObject.length);
-            byteBuffer.clear();
-            // System.out.println(marshalObject.length);
-            byteBuffer.put(marshalHeader);
-            byteBuffer.put(marshalObject);
-            byteBuffer.flip();
-            socketChannel.write(byteBuffer);
+            pooledConnection.getConnection().send(new CancelPacket().setRequestId(requestPacket.requestId));
         } catch (IOException e) {
-            e.printStackTrace();
+            // the connection is gone, so is the call on the server
         }
     }
+
+    /**
+     * Let the server send more items of the streamed result of the call.
+     * @param requestPacket the call, sent already
+     * @param credits count of further items the client is ready to receive
+     */
+    public void grantCredits(RequestPacket requestPacket, int credits) {
+        if (!(requestPacket.route instanceof PooledConnection))
+            return;
+        PooledConnection pooledConnection = (PooledConnection) requestPacket.route;
+
+        try {
+            pooledConnection.getConnection().send(new StreamPacket()
+                    .setType(StreamPacket.TYPE_CREDIT)
+                    .setCredits(credits)
+                    .copyFromRequest(requestPacket));
+        } catch (IOException e) {
+            // the connection is gone, the call is failed by its closing
+        }
+    }
+
+    /**
+     * Called by the invoker once a call sent by <code>sendRequestPacket</code> is answered,
+     * timed out or cancelled, exactly once per call. Updates the statistics of its connection
+     * and endpoint, gives back its credit, and ejects the endpoint if it keeps failing.
+     * @param requestPacket the finished call
+     * @param responsePacket its response, null if the call was abandoned, e.g. timed out
+     */
+    public void finishRequestPacket(RequestPacket requestPacket, ResponsePacket responsePacket) {
+        // a call still waiting for a credit is not sent any more once it gets one
+        Object route = ROUTE_UPDATER.getAndSet(requestPacket, FINISHED);
+        if (!(route instanceof PooledConnection))
+            return;
+        PooledConnection pooledConnection = (PooledConnection) route;
+
+        long now = System.nanoTime();
+        long latency = responsePacket == null ? -1 : now - requestPacket.sendTime;
+        boolean failed = responsePacket == null
+                || responsePacket.status == ResponsePacket.STATUS_SERVER_BUSY
+                || responsePacket.status == ResponsePacket.STATUS_DEADLINE_EXCEEDED
+                || responsePacket.exception instanceof IOException
+                || (slowCallThreshold > 0 && latency > slowCallThreshold);
+
+        pooledConnection.onCallFinished(responsePacket == null);
+        Endpoint endpoint = pooledConnection.getEndpoint();
+        if (endpoint.onCallFinished(latency, failed) >= maxFailures && endpoints.size() > 1)
+            endpoint.eject(now + ejectionTime);
+    }
 }
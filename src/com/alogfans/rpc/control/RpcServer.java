@@ -1,17 +1,31 @@
 package com.alogfans.rpc.control;
 
-import com.alogfans.rpc.marshal.MarshalHelper;
+import com.alogfans.rpc.async.PendingCallTable;
+import com.alogfans.rpc.marshal.BatchRequestPacket;
+import com.alogfans.rpc.marshal.BatchResponsePacket;
+import com.alogfans.rpc.marshal.BinaryCodec;
+import com.alogfans.rpc.marshal.CancelPacket;
+import com.alogfans.rpc.marshal.Codec;
+import com.alogfans.rpc.marshal.HandshakePacket;
 import com.alogfans.rpc.marshal.RequestPacket;
 import com.alogfans.rpc.marshal.ResponsePacket;
+import com.alogfans.rpc.marshal.StreamPacket;
+import com.alogfans.rpc.stub.MethodDispatcher;
 import com.alogfans.rpc.stub.Provider;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
 
 /**
  * The server that provides calling services. Several provided objected can be
@@ -21,17 +35,71 @@ import java.util.concurrent.ConcurrentHashMap;
  * Created by Alogfans on 2015/8/5.
  */
 public class RpcServer {
-    private final int BUFFER_SIZE = 4096;
-
     private int port;
     private int timeout;
+    private Codec codec = new BinaryCodec();
+
+    // outbound frames of all connections are coalesced into gathering writes
+    private long coalescingWindow = 0;
+    private final FlushStats flushStats = new FlushStats();
+
+    // how requests are executed once decoded
+    private ExecutionMode executionMode = ExecutionMode.FIXED_POOL;
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int queueCapacity = 1024;
+    private RejectionPolicy rejectionPolicy = RejectionPolicy.SERVER_BUSY;
+    private RequestExecutor requestExecutor;
+    private boolean interruptOnCancel = false;
+
+    // items per frame of streamed results
+    private int streamChunkSize = 64;
+
+    // frames larger than this are compressed on connections agreeing on it, 0 to disable
+    private int compressionThreshold = 0;
 
     // all provider we will listening to, for others will just ignore them.
     private ConcurrentHashMap<Class<?>, Provider> rpcProviderHashMap;
 
+    // method table published to clients in handshake, indexed by method ID. IDs are never
+    // reused, entries of unregistered providers are left as null.
+    private volatile MethodDispatcher[] methodTable = new MethodDispatcher[0];
+
+    // connections past their handshake, told about providers registered later
+    private final Set<Connection> handshakenConnections = ConcurrentHashMap.newKeySet();
+
     // NIO implementation related elements
     private ServerSocketChannel serverSocketChannel;
-    private Selector selector;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private EventLoop acceptorLoop;
+    private EventLoop[] ioLoops;
+    private int nextIoLoop = 0;
+
+    private final Connection.Handler connectionHandler = new Connection.Handler() {
+        @Override
+        public void onPacket(Connection connection, Object packet) {
+            if (packet instanceof HandshakePacket) {
+                performHandshake(connection, (HandshakePacket) packet);
+            } else if (packet instanceof CancelPacket) {
+                cancelServerCall(connection, ((CancelPacket) packet).requestId);
+            } else if (packet instanceof StreamPacket) {
+                grantStreamCredits(connection, (StreamPacket) packet);
+            } else if (packet instanceof BatchRequestPacket) {
+                dispatchBatchRequestPacket(connection, (BatchRequestPacket) packet);
+            } else {
+                dispatchRequestPacket(connection, (RequestPacket) packet);
+            }
+        }
+
+        @Override
+        public void onClosed(Connection connection) {
+            handshakenConnections.remove(connection);
+
+            // nobody is left to read the responses
+            PendingCallTable<ServerCall> serverCalls = serverCallsOf(connection);
+            for (long requestId : serverCalls.keys())
+                cancelServerCall(connection, requestId);
+        }
+    };
 
     public RpcServer() {
         timeout = Integer.MAX_VALUE;
@@ -48,9 +116,128 @@ public class RpcServer {
         return this;
     }
 
+    /**
+     * Choose where provided methods run, providers may override it for themselves.
+     * @param executionMode default execution mode of all providers
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * @return whether <code>VIRTUAL_THREAD</code> requests run on virtual threads, false
+     * before Java 21 where they run on the fixed pool instead.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return RequestExecutor.isVirtualThreadSupported();
+    }
+
+    /**
+     * Choose how many event loops handle the I/O of accepted connections. Each connection
+     * stays on one loop for its lifetime.
+     * @param ioThreads count of I/O threads, one per core by default
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    /**
+     * Choose how many worker threads invoke the requests. Calls of a single-flight method
+     * waiting for an identical invocation do not hold a worker meanwhile.
+     * @param workerThreads count of workers, twice the cores by default
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * Bound the number of requests waiting for a worker thread.
+     * @param queueCapacity maximum count of queued requests
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * Interrupt the worker thread of an invocation when its client cancels it. By default
+     * the invocation is only signalled through <code>RpcContext.isCancelled</code>, as
+     * interrupts may surprise provided code, e.g. by closing its interruptible channels.
+     * @param interruptOnCancel true to interrupt cancelled invocations
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setInterruptOnCancel(boolean interruptOnCancel) {
+        this.interruptOnCancel = interruptOnCancel;
+        return this;
+    }
+
+    /**
+     * Choose how many items of a streamed result share one frame, fewer are sent when the
+     * client has fewer credits left.
+     * @param streamChunkSize maximum count of items per frame, 64 by default
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setStreamChunkSize(int streamChunkSize) {
+        this.streamChunkSize = streamChunkSize;
+        return this;
+    }
+
+    /**
+     * Compress the frames larger than the threshold, on connections of clients compressing
+     * as well. Frames below it are sent as they are, so small calls pay nothing.
+     * @param compressionThreshold smallest frame body in bytes to compress, 0 to disable
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public RpcServer setRejectionPolicy(RejectionPolicy rejectionPolicy) {
+        this.rejectionPolicy = rejectionPolicy;
+        return this;
+    }
+
+    /**
+     * Let outbound frames wait up to the given window, so that frames of concurrent calls
+     * share one write system call. By default frames queued within one event loop
+     * iteration are already written together.
+     * @param coalescingWindow window in microseconds, 0 to disable
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setCoalescingWindow(long coalescingWindow) {
+        this.coalescingWindow = TimeUnit.MICROSECONDS.toNanos(coalescingWindow);
+        return this;
+    }
+
+    /**
+     * @return write counters of all connections, including the frames per write system call.
+     */
+    public FlushStats getFlushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Choose how packets are marshaled, the clients must use the same codec.
+     * @param codec codec for all frames of this server
+     * @return the caller RpcServer itself.
+     */
+    public RpcServer setCodec(Codec codec) {
+        this.codec = codec;
+        return this;
+    }
+
     /**
      * Register the given rpc service, and the server will keep track of the request
-     * of such invocations.
+     * of such invocations. Clients already connected are sent the new method table, their
+     * calls reach the service once it arrives.
      * @param provider new instance of a structure of server-end object for invocation
      * @return the caller RpcServer itself.
      */
@@ -60,6 +247,17 @@ public class RpcServer {
 
         rpcProviderHashMap.put(provider.getInterfaceClass(), provider);
         provider.setRpcServer(this);
+
+        synchronized (this) {
+            MethodDispatcher[] dispatchers = provider.prepareDispatchers();
+            MethodDispatcher[] newMethodTable = Arrays.copyOf(methodTable, methodTable.length + dispatchers.length);
+            System.arraycopy(dispatchers, 0, newMethodTable, methodTable.length, dispatchers.length);
+            methodTable = newMethodTable;
+
+            HandshakePacket handshakePacket = prepareHandshake();
+            for (Connection connection : handshakenConnections)
+                writeResponsePacket(connection, handshakePacket);
+        }
         return this;
     }
 
@@ -75,159 +273,391 @@ public class RpcServer {
 
         rpcProviderHashMap.remove(provider.getInterfaceClass());
         provider.setRpcServer(null);
+
+        synchronized (this) {
+            MethodDispatcher[] newMethodTable = methodTable.clone();
+            for (int i = 0; i < newMethodTable.length; i++) {
+                if (newMethodTable[i] != null && newMethodTable[i].getProvider() == provider)
+                    newMethodTable[i] = null;
+            }
+            methodTable = newMethodTable;
+        }
         return this;
     }
 
     // ----- Now comes to the implementation dependent part -----
 
     /**
-     * Prepare NIO objects and start processing looping in current thread. Never exit unless
-     * abortion because of exception.
+     * Prepare NIO objects, start the I/O threads and accept connections in current thread.
+     * Never exit unless <code>close()</code> is called or abortion because of exception.
      */
     public void startService() {
+        requestExecutor = new RequestExecutor(workerThreads, queueCapacity, rejectionPolicy);
         try {
             prepareNioObjects();
-            while (selector.select() > 0) {
-                frameProcess();
-            }
+            for (EventLoop ioLoop : ioLoops)
+                ioLoop.start();
+            acceptorLoop.run();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Stop accepting connections, close all established ones and stop the worker threads.
+     */
+    public void close() {
+        if (acceptorLoop != null)
+            acceptorLoop.close();
+        if (ioLoops != null) {
+            for (EventLoop ioLoop : ioLoops)
+                ioLoop.close();
+        }
+        if (requestExecutor != null)
+            requestExecutor.shutdown();
+    }
+
     private void prepareNioObjects() throws IOException {
         serverSocketChannel = ServerSocketChannel.open();
-        selector = Selector.open();
+        acceptorLoop = new EventLoop("rpc-server-acceptor");
+        ioLoops = new EventLoop[Math.max(ioThreads, 1)];
+        for (int i = 0; i < ioLoops.length; i++)
+            ioLoops[i] = new EventLoop("rpc-server-io-" + i);
 
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.socket().setReuseAddress(true);
 
         serverSocketChannel.bind(new InetSocketAddress(port));
 
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-    }
+        serverSocketChannel.register(acceptorLoop.getSelector(), SelectionKey.OP_ACCEPT, new EventHandler() {
+            @Override
+            public void onSelected(SelectionKey selectionKey) {
+                onAcceptable();
+            }
 
-    public void frameProcess() throws IOException {
-        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-        while (iterator.hasNext()) {
-            SelectionKey selectionKey = iterator.next();
-            iterator.remove();
-            if (selectionKey.isAcceptable()) {
-                SocketChannel socketChannel = serverSocketChannel.accept();
-                socketChannel.configureBlocking(false);
-                socketChannel.register(selector, SelectionKey.OP_READ);
+            @Override
+            public void onFailure(SelectionKey selectionKey, RuntimeException exception) {
+                // keep accepting, the connection being set up is the only one lost
+                exception.printStackTrace();
             }
+        });
+    }
 
-            if (selectionKey.isReadable()) {
-                SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-                onReadRequests(socketChannel);
+    private void onAcceptable() {
+        try {
+            SocketChannel socketChannel;
+            while ((socketChannel = serverSocketChannel.accept()) != null) {
+                // hand over to the I/O loops in turn, the connection is pinned to it
+                EventLoop ioLoop = ioLoops[nextIoLoop];
+                nextIoLoop = (nextIoLoop + 1) % ioLoops.length;
+                new Connection(socketChannel, ioLoop, codec, connectionHandler)
+                        .setCoalescingWindow(coalescingWindow)
+                        .setFlushStats(flushStats)
+                        .attach(new PendingCallTable<ServerCall>())
+                        .register();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    public void writeResponsePacket(SocketChannel socketChannel, ResponsePacket responsePacket) {
+    public void writeResponsePacket(Connection connection, Object responsePacket) {
         try {
-            ByteBuffer byteBuffer;
-            byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-
-            byte[] marshalObject = MarshalHelper.objectToBytes(responsePacket);
-            byte[] marshalHeader = MarshalHelper.int32ToBytes(marshalObject.length);
-            byteBuffer.clear();
-            byteBuffer.put(marshalHeader);
-            byteBuffer.put(marshalObject);
-            byteBuffer.flip();
-
+            connection.send(responsePacket);
+        } catch (IOException e) {
             // If no connection now, please ignore it (usually in async calling)
+            if (connection.isClosed() || !(responsePacket instanceof ResponsePacket))
+                return;
+
+            // the result cannot be marshaled, at least let the caller know
+            ResponsePacket failedPacket = new ResponsePacket().setException(e);
+            failedPacket.requestId = ((ResponsePacket) responsePacket).requestId;
+            failedPacket.methodId = ((ResponsePacket) responsePacket).methodId;
             try {
-                if (socketChannel.isConnected()) {
-                    socketChannel.write(byteBuffer);
-                }
-            } catch (IOException e) {
-                socketChannel.close();
+                connection.send(failedPacket);
+            } catch (IOException again) {
+                again.printStackTrace();
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    private void onReadRequests(SocketChannel socketChannel) throws IOException {
-        ByteBuffer byteBuffer;
-        byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private MethodDispatcher lookupDispatcher(int methodId) {
+        MethodDispatcher[] methodTable = this.methodTable;
+        if (methodId < 0 || methodId >= methodTable.length)
+            return null;
+        return methodTable[methodId];
+    }
 
-        byteBuffer.clear();
-        socketChannel.read(byteBuffer);
-        byteBuffer.flip();
+    @SuppressWarnings("unchecked")
+    private static PendingCallTable<ServerCall> serverCallsOf(Connection connection) {
+        return (PendingCallTable<ServerCall>) connection.attachment();
+    }
 
-        int countBytes = byteBuffer.limit();
-        if (countBytes == 0) {
-            socketChannel.close();
+    private void cancelServerCall(Connection connection, long requestId) {
+        ServerCall serverCall = serverCallsOf(connection).remove(requestId);
+        if (serverCall != null)
+            serverCall.cancel(interruptOnCancel);
+    }
+
+    private void grantStreamCredits(Connection connection, StreamPacket streamPacket) {
+        ServerCall serverCall = serverCallsOf(connection).get(streamPacket.requestId);
+        ServerStream serverStream = serverCall == null ? null : serverCall.getStream();
+        if (serverStream != null)
+            serverStream.grant(streamPacket.credits);
+    }
+
+    private void performHandshake(Connection connection, HandshakePacket request) {
+        int features = 0;
+        if (compressionThreshold > 0 && request.hasFeature(HandshakePacket.FEATURE_COMPRESSION))
+            features |= HandshakePacket.FEATURE_COMPRESSION;
+
+        // under the lock of register(), so that a table published meanwhile follows the answer
+        synchronized (this) {
+            writeResponsePacket(connection, prepareHandshake().setFeatures(features));
+            // the answer itself goes uncompressed, the client reads it before decoding frames
+            if ((features & HandshakePacket.FEATURE_COMPRESSION) != 0)
+                connection.setCompressor(new FrameCompressor(compressionThreshold, Deflater.BEST_SPEED));
+            handshakenConnections.add(connection);
         }
+    }
 
-        int cursor = 0;
+    private HandshakePacket prepareHandshake() {
+        MethodDispatcher[] methodTable = this.methodTable;
+        String[] signatures = new String[methodTable.length];
+        for (int i = 0; i < methodTable.length; i++) {
+            if (methodTable[i] != null)
+                signatures[i] = methodTable[i].getSignature();
+        }
+        return new HandshakePacket().setSignatures(signatures);
+    }
+
+    private void dispatchRequestPacket(Connection connection, RequestPacket requestPacket) {
+        if (requestPacket == null)
+            return;
+        requestPacket.startDeadline();
 
-        // System.out.println(countBytes);
+        MethodDispatcher dispatcher = lookupDispatcher(requestPacket.methodId);
+        if (dispatcher == null) {
+            writeResponsePacket(connection,
+                    new ResponsePacket()
+                            .copyFromRequest(requestPacket)
+                            .setException(new ClassNotFoundException("Such class not provided")));
+            return;
+        }
 
-        while (cursor < countBytes) {
-            // TODO: Not considered with slitted packet!
-            byte[] marshallBytes = readBytes(socketChannel, byteBuffer, 4);
-            int packetLength = MarshalHelper.bytesToInt32(marshallBytes);
+        Provider provider = dispatcher.getProvider();
+        describeRequestPacket(requestPacket, dispatcher);
 
-            byte[] marshallObject = readBytes(socketChannel, byteBuffer, packetLength);
-            cursor += Integer.BYTES + packetLength;
+        // tracked until answered, so that cancel frames find it
+        PendingCallTable<ServerCall> serverCalls = serverCallsOf(connection);
+        ServerCall serverCall = new ServerCall(requestPacket);
+        serverCalls.put(requestPacket.requestId, serverCall);
 
-            RequestPacket requestPacket = null;
+        ExecutionMode mode = provider.getExecutionMode() != null ? provider.getExecutionMode() : executionMode;
+        Executor workers = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                if (!requestExecutor.execute(mode, task))
+                    throw new RejectedExecutionException("Server busy");
+            }
+        };
+        boolean accepted = requestExecutor.execute(mode, new Runnable() {
+            @Override
+            public void run() {
+                // cancelled while queued, the client reads no response
+                if (!serverCall.start())
+                    return;
+
+                // queued past the deadline of the caller, answer cheaply instead of invoking
+                if (requestPacket.isExpired()) {
+                    serverCall.finish();
+                    serverCalls.remove(requestPacket.requestId);
+                    writeResponsePacket(connection,
+                            new ResponsePacket()
+                                    .copyFromRequest(requestPacket)
+                                    .setStatus(ResponsePacket.STATUS_DEADLINE_EXCEEDED));
+                    return;
+                }
 
-            try {
-                requestPacket = (RequestPacket) MarshalHelper.byteToObject(marshallObject);
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+                // a call sharing an invocation in flight frees the worker meanwhile
+                CompletableFuture<ResponsePacket> response = provider.invokeAsync(dispatcher, requestPacket, workers);
+                if (!response.isDone())
+                    serverCall.suspend();
+                response.thenAccept(new Consumer<ResponsePacket>() {
+                    @Override
+                    public void accept(ResponsePacket responsePacket) {
+                        answer(connection, serverCall, responsePacket, workers);
+                    }
+                });
             }
+        });
 
-            dispatchRequestPacket(socketChannel, requestPacket);
+        if (!accepted) {
+            serverCalls.remove(requestPacket.requestId);
+            writeResponsePacket(connection,
+                    new ResponsePacket()
+                            .copyFromRequest(requestPacket)
+                            .setStatus(ResponsePacket.STATUS_SERVER_BUSY));
         }
     }
 
-    private byte[] readBytes(SocketChannel socketChannel, ByteBuffer byteBuffer, int countBytes)  throws IOException {
-        byte[] result = new byte[countBytes];
-        int firstBytes = byteBuffer.limit() - byteBuffer.position();
-        if (firstBytes < countBytes) {
-            // need more content, first read it fully
-            byteBuffer.get(result, 0, firstBytes);
+    /**
+     * Send the response of a call, or start streaming its result, once the invocation returned.
+     */
+    private void answer(Connection connection, ServerCall serverCall, ResponsePacket responsePacket,
+                        Executor workers) {
+        RequestPacket requestPacket = serverCall.getRequestPacket();
+        PendingCallTable<ServerCall> serverCalls = serverCallsOf(connection);
+        if (requestPacket.credits > 0 && responsePacket.exception == null
+                && ServerStream.isStreamable(responsePacket.result)) {
+            // pending until the last chunk is sent
+            ServerStream serverStream = new ServerStream(connection, requestPacket, responsePacket.result,
+                    streamChunkSize, workers, new Runnable() {
+                        @Override
+                        public void run() {
+                            serverCalls.remove(requestPacket.requestId);
+                        }
+                    });
+            serverCall.openStream(serverStream);
+            serverStream.start();
+            return;
+        }
 
-            // read again
-            ByteBuffer tinyByteBuffer;
-            tinyByteBuffer = ByteBuffer.allocate(countBytes - firstBytes);
-            tinyByteBuffer.clear();
-            socketChannel.read(tinyByteBuffer);
-            tinyByteBuffer.flip();
+        boolean answered = serverCall.finish();
+        serverCalls.remove(requestPacket.requestId);
+        if (answered)
+            writeResponsePacket(connection, responsePacket);
+    }
 
-            tinyByteBuffer.get(result, firstBytes, countBytes - firstBytes);
-        } else {
-            byteBuffer.get(result);
-        }
-        return result;
+    private void describeRequestPacket(RequestPacket requestPacket, MethodDispatcher dispatcher) {
+        Provider provider = dispatcher.getProvider();
+        requestPacket.interfaceClass = provider.getInterfaceClass();
+        requestPacket.version = provider.getVersion();
+        requestPacket.method = dispatcher.getMethod().getName();
+        requestPacket.argTypes = dispatcher.getArgTypes();
+        requestPacket.signature = dispatcher.getSignature();
     }
 
-    private void dispatchRequestPacket(SocketChannel socketChannel, RequestPacket requestPacket) {
-        if (requestPacket == null)
-            return;
+    /**
+     * Execute the calls of a batch, in order by one worker or concurrently by several, and
+     * answer them all in one frame once the last one returns. Calls run concurrently each
+     * in the execution mode of their provider, calls run in order in the mode all their
+     * providers agree on, or else in the mode of the server.
+     */
+    private void dispatchBatchRequestPacket(Connection connection, BatchRequestPacket batchPacket) {
+        batchPacket.startDeadline();
+
+        RequestPacket[] requestPackets = batchPacket.requests;
+        MethodDispatcher[] dispatchers = new MethodDispatcher[requestPackets.length];
+        ResponsePacket[] responsePackets = new ResponsePacket[requestPackets.length];
+        ExecutionMode[] modes = new ExecutionMode[requestPackets.length];
+        ExecutionMode commonMode = null;
+        boolean agreed = true;
+        for (int i = 0; i < requestPackets.length; i++) {
+            requestPackets[i].deadline = batchPacket.deadline;
+            dispatchers[i] = lookupDispatcher(requestPackets[i].methodId);
+            if (dispatchers[i] == null) {
+                responsePackets[i] = new ResponsePacket()
+                        .copyFromRequest(requestPackets[i])
+                        .setException(new ClassNotFoundException("Such class not provided"));
+                continue;
+            }
+            describeRequestPacket(requestPackets[i], dispatchers[i]);
+            modes[i] = dispatchers[i].getProvider().getExecutionMode() != null
+                    ? dispatchers[i].getProvider().getExecutionMode() : executionMode;
+            if (commonMode == null)
+                commonMode = modes[i];
+            else if (commonMode != modes[i])
+                agreed = false;
+        }
 
-        Provider provider = rpcProviderHashMap.get(requestPacket.interfaceClass);
-        if (provider == null) {
-            writeResponsePacket(socketChannel,
-                    new ResponsePacket()
-                            .copyFromRequest(requestPacket)
-                            .setException(new ClassNotFoundException("Such class not provided")));
+        PendingCallTable<ServerCall> serverCalls = serverCallsOf(connection);
+        ServerCall serverCall = new ServerCall(batchPacket);
+        serverCalls.put(batchPacket.requestId, serverCall);
+        BatchResponsePacket batchResponsePacket = (BatchResponsePacket) new BatchResponsePacket()
+                .setResponses(responsePackets)
+                .copyFromRequest(batchPacket);
+
+        if (!batchPacket.parallel) {
+            ExecutionMode mode = agreed && commonMode != null ? commonMode : executionMode;
+            boolean accepted = requestExecutor.execute(mode, new Runnable() {
+                @Override
+                public void run() {
+                    if (!serverCall.start())
+                        return;
+                    for (int i = 0; i < requestPackets.length; i++) {
+                        if (responsePackets[i] == null)
+                            responsePackets[i] = invokeBatched(dispatchers[i], requestPackets[i]);
+                    }
+                    boolean answered = serverCall.finish();
+                    serverCalls.remove(batchPacket.requestId);
+                    if (answered)
+                        writeResponsePacket(connection, batchResponsePacket);
+                }
+            });
+            if (!accepted) {
+                serverCalls.remove(batchPacket.requestId);
+                writeResponsePacket(connection,
+                        new ResponsePacket()
+                                .copyFromRequest(batchPacket)
+                                .setStatus(ResponsePacket.STATUS_SERVER_BUSY));
+            }
             return;
         }
 
-        new Thread(new Runnable() {
+        // each call is tracked like a single one, so that cancelling the batch reaches them
+        ServerCall[] parts = new ServerCall[requestPackets.length];
+        for (int i = 0; i < requestPackets.length; i++)
+            parts[i] = new ServerCall(requestPackets[i]);
+        serverCall.setParts(parts);
+
+        // the last call to return sends the responses of all
+        AtomicInteger remaining = new AtomicInteger(requestPackets.length + 1);
+        Runnable onReturned = new Runnable() {
             @Override
             public void run() {
-                ResponsePacket responsePacket = provider.invoke(requestPacket);
-                writeResponsePacket(socketChannel, responsePacket);
+                if (remaining.decrementAndGet() != 0)
+                    return;
+                boolean answered = serverCall.finish();
+                serverCalls.remove(batchPacket.requestId);
+                if (answered)
+                    writeResponsePacket(connection, batchResponsePacket);
+            }
+        };
+        for (int i = 0; i < requestPackets.length; i++) {
+            if (responsePackets[i] != null) {
+                onReturned.run();
+                continue;
+            }
+
+            final int index = i;
+            boolean accepted = requestExecutor.execute(modes[i], new Runnable() {
+                @Override
+                public void run() {
+                    if (parts[index].start()) {
+                        responsePackets[index] = invokeBatched(dispatchers[index], requestPackets[index]);
+                        parts[index].finish();
+                    }
+                    onReturned.run();
+                }
+            });
+            if (!accepted) {
+                responsePackets[i] = new ResponsePacket()
+                        .copyFromRequest(requestPackets[i])
+                        .setStatus(ResponsePacket.STATUS_SERVER_BUSY);
+                onReturned.run();
             }
-        }).start();
+        }
+        onReturned.run();
+    }
+
+    private ResponsePacket invokeBatched(MethodDispatcher dispatcher, RequestPacket requestPacket) {
+        if (requestPacket.isExpired()) {
+            return new ResponsePacket()
+                    .copyFromRequest(requestPacket)
+                    .setStatus(ResponsePacket.STATUS_DEADLINE_EXCEEDED);
+        }
+        // cancelled calls are skipped by the provider, their response is never sent
+        return dispatcher.getProvider().invoke(dispatcher, requestPacket);
     }
 }
@@ -0,0 +1,123 @@
+package com.alogfans.rpc.control;
+
+import com.alogfans.rpc.marshal.BatchRequestPacket;
+import com.alogfans.rpc.marshal.RequestPacket;
+
+/**
+ * A request accepted by RpcServer and not answered yet, kept per connection so that
+ * cancel frames of the client can find it. A call is cancelled either before a worker
+ * starts it, then it is simply skipped, or while it runs, then the invocation is
+ * signalled through <code>RpcContext.isCancelled</code> and optionally interrupted.
+ * A call whose result is streamed stays pending until the stream ends, and a batch run
+ * concurrently tracks each of its calls as a part of its own.
+ */
+class ServerCall {
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
+    private final RequestPacket requestPacket;
+    private int state = QUEUED;
+    private Thread runner = null;
+    private volatile ServerStream stream = null;
+    private ServerCall[] parts = null;
+
+    ServerCall(RequestPacket requestPacket) {
+        this.requestPacket = requestPacket;
+    }
+
+    /**
+     * Called by the worker before invoking.
+     * @return false if the call has been cancelled and must be skipped.
+     */
+    synchronized boolean start() {
+        if (requestPacket.cancelled)
+            return false;
+        state = RUNNING;
+        runner = Thread.currentThread();
+        return true;
+    }
+
+    /**
+     * Called by the worker when it leaves the call waiting for an outcome in another thread,
+     * which a cancellation must no longer interrupt.
+     */
+    synchronized void suspend() {
+        if (runner == Thread.currentThread())
+            runner = null;
+    }
+
+    /**
+     * Called once the invocation returned. Clears an interrupt caused by cancellation, so
+     * it does not leak into the next task of the thread.
+     * @return false if the call has been cancelled and its response must be dropped.
+     */
+    boolean finish() {
+        boolean cancelled;
+        boolean interrupted;
+        synchronized (this) {
+            interrupted = runner == Thread.currentThread();
+            state = DONE;
+            runner = null;
+            cancelled = requestPacket.cancelled;
+        }
+        if (cancelled && interrupted)
+            Thread.interrupted();
+        return !cancelled;
+    }
+
+    RequestPacket getRequestPacket() {
+        return requestPacket;
+    }
+
+    /**
+     * Called by the worker instead of <code>finish</code> once the invocation returned a
+     * result to stream. The stream notices by itself if the call has been cancelled.
+     */
+    void openStream(ServerStream stream) {
+        synchronized (this) {
+            if (!requestPacket.cancelled)
+                this.stream = stream;
+        }
+        finish();
+    }
+
+    /**
+     * Track the calls of a batch run concurrently, each started and finished by its worker.
+     */
+    synchronized void setParts(ServerCall[] parts) {
+        this.parts = parts;
+    }
+
+    ServerStream getStream() {
+        return stream;
+    }
+
+    /**
+     * @param interrupt whether to interrupt a running invocation
+     */
+    void cancel(boolean interrupt) {
+        ServerStream stream;
+        ServerCall[] parts;
+        synchronized (this) {
+            stream = this.stream;
+            parts = this.parts;
+            if (state == DONE && stream == null)
+                return;
+            requestPacket.cancelled = true;
+            if (requestPacket instanceof BatchRequestPacket) {
+                for (RequestPacket batched : ((BatchRequestPacket) requestPacket).requests)
+                    batched.cancelled = true;
+            }
+            if (state == RUNNING && interrupt && runner != null)
+                runner.interrupt();
+        }
+        if (parts != null) {
+            for (ServerCall part : parts)
+                part.cancel(interrupt);
+        }
+        // the stream notices the cancellation in a worker thread and closes its source
+        if (stream != null)
+            stream.wakeUp();
+    }
+}
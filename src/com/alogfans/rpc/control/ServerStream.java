@@ -0,0 +1,190 @@
+package com.alogfans.rpc.control;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+import com.alogfans.rpc.marshal.StreamPacket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.BaseStream;
+
+/**
+ * A result of RpcServer sent as a sequence of chunks. Items are pulled from the iterator
+ * only while the client has credits left, so neither end holds more than the granted
+ * window of items. Pumping runs in worker threads, one at a time, and stops whenever the
+ * credits run out; credit frames of the client schedule it again.
+ */
+class ServerStream implements Runnable {
+    private final Connection connection;
+    private final RequestPacket requestPacket;
+    private final Iterator<?> iterator;
+    private final BaseStream<?, ?> resource;
+    private final int chunkSize;
+    private final Executor executor;
+    private final Runnable onFinished;
+
+    private final AtomicInteger credits;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // written by the thread pumping, visible to the next one through scheduled
+    private boolean finished = false;
+
+    /**
+     * @param connection connection of the call
+     * @param requestPacket the call, granting the initial credits
+     * @param result iterator or stream returned by the invocation
+     * @param chunkSize maximum count of items per frame
+     * @param executor executor of the worker threads
+     * @param onFinished run once the stream has ended, failed or been cancelled
+     */
+    ServerStream(Connection connection, RequestPacket requestPacket, Object result, int chunkSize,
+                 Executor executor, Runnable onFinished) {
+        this.connection = connection;
+        this.requestPacket = requestPacket;
+        if (result instanceof BaseStream) {
+            this.resource = (BaseStream<?, ?>) result;
+            this.iterator = resource.iterator();
+        } else {
+            this.resource = null;
+            this.iterator = (Iterator<?>) result;
+        }
+        this.chunkSize = Math.max(chunkSize, 1);
+        this.executor = executor;
+        this.onFinished = onFinished;
+        this.credits = new AtomicInteger(requestPacket.credits);
+    }
+
+    static boolean isStreamable(Object result) {
+        return result instanceof Iterator || result instanceof BaseStream;
+    }
+
+    /**
+     * Start pumping in the current thread, the worker which invoked the method.
+     */
+    void start() {
+        if (scheduled.compareAndSet(false, true))
+            run();
+    }
+
+    /**
+     * Let the stream send more items, from the I/O thread on a credit frame.
+     */
+    void grant(int count) {
+        credits.addAndGet(count);
+        wakeUp();
+    }
+
+    /**
+     * Schedule pumping unless it already runs, e.g. to notice a cancellation.
+     */
+    void wakeUp() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            fail(e);
+            scheduled.set(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        do {
+            pump();
+            scheduled.set(false);
+            // credits granted after the last check would be missed otherwise
+        } while (!finished && (credits.get() > 0 || requestPacket.cancelled) && scheduled.compareAndSet(false, true));
+    }
+
+    private void pump() {
+        if (finished)
+            return;
+
+        try {
+            while (true) {
+                if (requestPacket.cancelled) {
+                    // nobody reads the rest
+                    finish();
+                    return;
+                }
+                int count = Math.min(credits.get(), chunkSize);
+                if (count == 0)
+                    return;
+
+                Object[] items = new Object[count];
+                int size = 0;
+                Exception failure = null;
+                try {
+                    while (size < count && iterator.hasNext()) {
+                        // the index is taken before next() runs, a failing one must not count
+                        Object item = iterator.next();
+                        items[size++] = item;
+                    }
+                } catch (Exception e) {
+                    failure = e;
+                }
+                credits.addAndGet(-size);
+
+                // a full chunk does not ask for the next item, which may take a while to come
+                boolean last = failure == null && size < count;
+                if (failure == null || size > 0) {
+                    connection.send(new StreamPacket()
+                            .copyFromRequest(requestPacket)
+                            .setType(last ? StreamPacket.TYPE_END : StreamPacket.TYPE_DATA)
+                            .setItems(size < count ? Arrays.copyOf(items, size) : items));
+                }
+                // items read before the failure are delivered first
+                if (failure != null)
+                    throw failure;
+                if (last) {
+                    finish();
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            // thrown by the iterator, or an item cannot be marshaled
+            fail(e);
+        }
+    }
+
+    private void fail(Exception exception) {
+        if (finished)
+            return;
+        try {
+            connection.send(new StreamPacket()
+                    .copyFromRequest(requestPacket)
+                    .setType(StreamPacket.TYPE_ERROR)
+                    .setException(exception));
+        } catch (IOException e) {
+            // the exception itself cannot be marshaled, at least let the client know
+            if (!connection.isClosed()) {
+                try {
+                    connection.send(new StreamPacket()
+                            .copyFromRequest(requestPacket)
+                            .setType(StreamPacket.TYPE_ERROR)
+                            .setException(new IOException(exception.toString())));
+                } catch (IOException again) {
+                    again.printStackTrace();
+                }
+            }
+        }
+        finish();
+    }
+
+    private void finish() {
+        finished = true;
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        onFinished.run();
+    }
+}
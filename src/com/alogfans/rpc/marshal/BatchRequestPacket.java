@@ -0,0 +1,25 @@
+package com.alogfans.rpc.marshal;
+
+/**
+ * Several calls to the same service sent in one frame and answered in one
+ * <code>BatchResponsePacket</code>. The batch itself is tracked like any call, with its
+ * own ID, timeout and cancellation; its calls only carry their method IDs and arguments.
+ */
+public class BatchRequestPacket extends RequestPacket {
+    private static final long serialVersionUID = 6238589897120159526L;
+
+    public RequestPacket[] requests;
+
+    // run the calls concurrently on the workers of the server, rather than in order
+    public boolean parallel;
+
+    public BatchRequestPacket setRequests(RequestPacket[] requests) {
+        this.requests = requests;
+        return this;
+    }
+
+    public BatchRequestPacket setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+}
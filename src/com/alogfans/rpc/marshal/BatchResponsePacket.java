@@ -0,0 +1,17 @@
+package com.alogfans.rpc.marshal;
+
+/**
+ * Responses of the calls of a <code>BatchRequestPacket</code>, in the order of the calls.
+ * A failure of the batch as a whole, e.g. a busy server, is sent as a plain
+ * <code>ResponsePacket</code> instead.
+ */
+public class BatchResponsePacket extends ResponsePacket {
+    private static final long serialVersionUID = 6238589897120159526L;
+
+    public ResponsePacket[] responses;
+
+    public BatchResponsePacket setResponses(ResponsePacket[] responses) {
+        this.responses = responses;
+        return this;
+    }
+}
@@ -0,0 +1,407 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact codec writing packets field by field into the frame buffer. Primitives, strings,
+ * byte arrays, object arrays, lists and maps are written directly behind a one-byte tag;
+ * any other value falls back to Java serialization of that value alone.
+ *
+ * Only values of exactly <code>ArrayList</code>, <code>HashMap</code> or
+ * <code>LinkedHashMap</code> are written directly, so they arrive with the same class;
+ * other lists and maps are serialized like any other value.
+ */
+public class BinaryCodec implements Codec {
+    private static final byte PACKET_REQUEST = 1;
+    private static final byte PACKET_RESPONSE = 2;
+    private static final byte PACKET_HANDSHAKE = 3;
+    private static final byte PACKET_CANCEL = 4;
+    private static final byte PACKET_STREAM = 5;
+    private static final byte PACKET_BATCH_REQUEST = 6;
+    private static final byte PACKET_BATCH_RESPONSE = 7;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_BYTE = 3;
+    private static final byte TAG_SHORT = 4;
+    private static final byte TAG_CHAR = 5;
+    private static final byte TAG_INT = 6;
+    private static final byte TAG_LONG = 7;
+    private static final byte TAG_FLOAT = 8;
+    private static final byte TAG_DOUBLE = 9;
+    private static final byte TAG_STRING = 10;
+    private static final byte TAG_BYTES = 11;
+    private static final byte TAG_ARRAY = 12;
+    private static final byte TAG_LIST = 13;
+    private static final byte TAG_MAP = 14;
+    private static final byte TAG_LINKED_MAP = 15;
+    private static final byte TAG_SERIALIZED = 127;
+
+    @Override
+    public void encode(Object object, MarshalOutput output) throws IOException {
+        if (object instanceof BatchRequestPacket) {
+            output.writeByte(PACKET_BATCH_REQUEST);
+            writeBatchRequest((BatchRequestPacket) object, output);
+        } else if (object instanceof BatchResponsePacket) {
+            output.writeByte(PACKET_BATCH_RESPONSE);
+            writeBatchResponse((BatchResponsePacket) object, output);
+        } else if (object instanceof RequestPacket) {
+            output.writeByte(PACKET_REQUEST);
+            writeRequest((RequestPacket) object, output);
+        } else if (object instanceof ResponsePacket) {
+            output.writeByte(PACKET_RESPONSE);
+            writeResponse((ResponsePacket) object, output);
+        } else if (object instanceof HandshakePacket) {
+            output.writeByte(PACKET_HANDSHAKE);
+            writeHandshake((HandshakePacket) object, output);
+        } else if (object instanceof CancelPacket) {
+            output.writeByte(PACKET_CANCEL);
+            output.writeLong(((CancelPacket) object).requestId);
+        } else if (object instanceof StreamPacket) {
+            output.writeByte(PACKET_STREAM);
+            writeStream((StreamPacket) object, output);
+        } else {
+            throw new IOException("Unsupported packet " + object.getClass().getName());
+        }
+    }
+
+    @Override
+    public Object decode(MarshalInput input) throws IOException, ClassNotFoundException {
+        int packetType = input.readByte();
+        switch (packetType) {
+            case PACKET_REQUEST:
+                return readRequest(input);
+            case PACKET_RESPONSE:
+                return readResponse(input);
+            case PACKET_HANDSHAKE:
+                return readHandshake(input);
+            case PACKET_CANCEL:
+                return new CancelPacket().setRequestId(input.readLong());
+            case PACKET_STREAM:
+                return readStream(input);
+            case PACKET_BATCH_REQUEST:
+                return readBatchRequest(input);
+            case PACKET_BATCH_RESPONSE:
+                return readBatchResponse(input);
+            default:
+                throw new IOException("Unknown packet type " + packetType);
+        }
+    }
+
+    private void writeRequest(RequestPacket requestPacket, MarshalOutput output) throws IOException {
+        output.writeLong(requestPacket.requestId);
+        output.writeVarInt(requestPacket.methodId);
+        output.writeVarInt(requestPacket.timeout);
+        output.writeVarInt(requestPacket.credits);
+        writeArray(requestPacket.args, output);
+    }
+
+    private RequestPacket readRequest(MarshalInput input) throws IOException, ClassNotFoundException {
+        RequestPacket requestPacket = new RequestPacket();
+        requestPacket.requestId = input.readLong();
+        requestPacket.methodId = input.readVarInt();
+        requestPacket.timeout = input.readVarInt();
+        requestPacket.credits = input.readVarInt();
+        requestPacket.args = readArray(input);
+        return requestPacket;
+    }
+
+    private void writeResponse(ResponsePacket responsePacket, MarshalOutput output) throws IOException {
+        output.writeLong(responsePacket.requestId);
+        output.writeVarInt(responsePacket.methodId);
+        output.writeByte(responsePacket.status);
+        writeValue(responsePacket.result, output);
+        writeValue(responsePacket.exception, output);
+    }
+
+    private ResponsePacket readResponse(MarshalInput input) throws IOException, ClassNotFoundException {
+        ResponsePacket responsePacket = new ResponsePacket();
+        responsePacket.requestId = input.readLong();
+        responsePacket.methodId = input.readVarInt();
+        responsePacket.status = (byte) input.readByte();
+        responsePacket.result = readValue(input);
+        responsePacket.exception = readException(input);
+        return responsePacket;
+    }
+
+    private void writeBatchRequest(BatchRequestPacket batchPacket, MarshalOutput output) throws IOException {
+        output.writeLong(batchPacket.requestId);
+        output.writeVarInt(batchPacket.methodId);
+        output.writeVarInt(batchPacket.timeout);
+        output.writeByte(batchPacket.parallel ? 1 : 0);
+        output.writeVarInt(batchPacket.requests.length);
+        for (RequestPacket requestPacket : batchPacket.requests) {
+            output.writeVarInt(requestPacket.methodId);
+            writeArray(requestPacket.args, output);
+        }
+    }
+
+    private BatchRequestPacket readBatchRequest(MarshalInput input) throws IOException, ClassNotFoundException {
+        BatchRequestPacket batchPacket = new BatchRequestPacket();
+        batchPacket.requestId = input.readLong();
+        batchPacket.methodId = input.readVarInt();
+        batchPacket.timeout = input.readVarInt();
+        batchPacket.parallel = input.readByte() != 0;
+        batchPacket.requests = new RequestPacket[checkCount(input.readVarInt(), input)];
+        for (int i = 0; i < batchPacket.requests.length; i++) {
+            RequestPacket requestPacket = new RequestPacket();
+            requestPacket.requestId = batchPacket.requestId;
+            requestPacket.methodId = input.readVarInt();
+            requestPacket.timeout = batchPacket.timeout;
+            requestPacket.args = readArray(input);
+            batchPacket.requests[i] = requestPacket;
+        }
+        return batchPacket;
+    }
+
+    private void writeBatchResponse(BatchResponsePacket batchPacket, MarshalOutput output) throws IOException {
+        output.writeLong(batchPacket.requestId);
+        output.writeVarInt(batchPacket.methodId);
+        output.writeVarInt(batchPacket.responses.length);
+        for (ResponsePacket responsePacket : batchPacket.responses) {
+            output.writeByte(responsePacket.status);
+            writeValue(responsePacket.result, output);
+            writeValue(responsePacket.exception, output);
+        }
+    }
+
+    private BatchResponsePacket readBatchResponse(MarshalInput input) throws IOException, ClassNotFoundException {
+        BatchResponsePacket batchPacket = new BatchResponsePacket();
+        batchPacket.requestId = input.readLong();
+        batchPacket.methodId = input.readVarInt();
+        batchPacket.responses = new ResponsePacket[checkCount(input.readVarInt(), input)];
+        for (int i = 0; i < batchPacket.responses.length; i++) {
+            ResponsePacket responsePacket = new ResponsePacket();
+            responsePacket.requestId = batchPacket.requestId;
+            responsePacket.status = (byte) input.readByte();
+            responsePacket.result = readValue(input);
+            responsePacket.exception = readException(input);
+            batchPacket.responses[i] = responsePacket;
+        }
+        return batchPacket;
+    }
+
+    private void writeStream(StreamPacket streamPacket, MarshalOutput output) throws IOException {
+        output.writeLong(streamPacket.requestId);
+        output.writeVarInt(streamPacket.methodId);
+        output.writeByte(streamPacket.type);
+        switch (streamPacket.type) {
+            case StreamPacket.TYPE_DATA:
+            case StreamPacket.TYPE_END:
+                writeArray(streamPacket.items, output);
+                break;
+            case StreamPacket.TYPE_ERROR:
+                writeValue(streamPacket.exception, output);
+                break;
+            default:
+                output.writeVarInt(streamPacket.credits);
+                break;
+        }
+    }
+
+    private StreamPacket readStream(MarshalInput input) throws IOException, ClassNotFoundException {
+        StreamPacket streamPacket = new StreamPacket();
+        streamPacket.requestId = input.readLong();
+        streamPacket.methodId = input.readVarInt();
+        streamPacket.type = (byte) input.readByte();
+        switch (streamPacket.type) {
+            case StreamPacket.TYPE_DATA:
+            case StreamPacket.TYPE_END:
+                streamPacket.items = readArray(input);
+                break;
+            case StreamPacket.TYPE_ERROR:
+                streamPacket.exception = readException(input);
+                break;
+            default:
+                streamPacket.credits = input.readVarInt();
+                break;
+        }
+        return streamPacket;
+    }
+
+    private void writeHandshake(HandshakePacket handshakePacket, MarshalOutput output) {
+        writeStrings(handshakePacket.signatures, output);
+        output.writeVarInt(handshakePacket.features);
+    }
+
+    private HandshakePacket readHandshake(MarshalInput input) throws IOException {
+        HandshakePacket handshakePacket = new HandshakePacket().setSignatures(readStrings(input));
+        return handshakePacket.setFeatures(input.readVarInt());
+    }
+
+    private void writeStrings(String[] strings, MarshalOutput output) {
+        if (strings == null) {
+            output.writeVarInt(0);
+            return;
+        }
+        output.writeVarInt(strings.length + 1);
+        for (String string : strings)
+            output.writeString(string);
+    }
+
+    private String[] readStrings(MarshalInput input) throws IOException {
+        int length = input.readVarInt() - 1;
+        if (length == -1)
+            return null;
+        checkCount(length, input);
+        String[] strings = new String[length];
+        for (int i = 0; i < length; i++)
+            strings[i] = input.readString();
+        return strings;
+    }
+
+    // ----- Values are tagged, unknown types fall back to Java serialization -----
+
+    private void writeArray(Object[] array, MarshalOutput output) throws IOException {
+        if (array == null) {
+            output.writeVarInt(0);
+            return;
+        }
+        output.writeVarInt(array.length + 1);
+        for (Object element : array)
+            writeValue(element, output);
+    }
+
+    private Object[] readArray(MarshalInput input) throws IOException, ClassNotFoundException {
+        int length = input.readVarInt() - 1;
+        if (length == -1)
+            return null;
+        checkCount(length, input);
+        Object[] array = new Object[length];
+        for (int i = 0; i < length; i++)
+            array[i] = readValue(input);
+        return array;
+    }
+
+    private void writeValue(Object value, MarshalOutput output) throws IOException {
+        if (value == null) {
+            output.writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            output.writeByte(TAG_STRING);
+            output.writeString((String) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(TAG_INT);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            output.writeByte(TAG_LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Double) {
+            output.writeByte(TAG_DOUBLE);
+            output.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            output.writeByte(TAG_FLOAT);
+            output.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Byte) {
+            output.writeByte(TAG_BYTE);
+            output.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            output.writeByte(TAG_SHORT);
+            output.writeInt((Short) value);
+        } else if (value instanceof Character) {
+            output.writeByte(TAG_CHAR);
+            output.writeInt((Character) value);
+        } else if (value instanceof byte[]) {
+            output.writeByte(TAG_BYTES);
+            output.writeBytes((byte[]) value);
+        } else if (value.getClass() == Object[].class) {
+            output.writeByte(TAG_ARRAY);
+            writeArray((Object[]) value, output);
+        } else if (value.getClass() == ArrayList.class) {
+            List<?> list = (List<?>) value;
+            output.writeByte(TAG_LIST);
+            output.writeVarInt(list.size());
+            for (Object element : list)
+                writeValue(element, output);
+        } else if (value.getClass() == HashMap.class || value.getClass() == LinkedHashMap.class) {
+            writeMap(value.getClass() == LinkedHashMap.class ? TAG_LINKED_MAP : TAG_MAP, (Map<?, ?>) value, output);
+        } else {
+            output.writeByte(TAG_SERIALIZED);
+            output.writeBytes(MarshalHelper.objectToBytes(value));
+        }
+    }
+
+    private void writeMap(byte tag, Map<?, ?> map, MarshalOutput output) throws IOException {
+        output.writeByte(tag);
+        output.writeVarInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeValue(entry.getKey(), output);
+            writeValue(entry.getValue(), output);
+        }
+    }
+
+    private Object readValue(MarshalInput input) throws IOException, ClassNotFoundException {
+        int tag = input.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BYTE:
+                return (byte) input.readByte();
+            case TAG_SHORT:
+                return (short) input.readInt();
+            case TAG_CHAR:
+                return (char) input.readInt();
+            case TAG_INT:
+                return input.readInt();
+            case TAG_LONG:
+                return input.readLong();
+            case TAG_FLOAT:
+                return Float.intBitsToFloat(input.readInt());
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(input.readLong());
+            case TAG_STRING:
+                return input.readString();
+            case TAG_BYTES:
+                return input.readBytes();
+            case TAG_ARRAY:
+                return readArray(input);
+            case TAG_LIST: {
+                int size = checkCount(input.readVarInt(), input);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(readValue(input));
+                return list;
+            }
+            case TAG_MAP:
+            case TAG_LINKED_MAP: {
+                int size = checkCount(input.readVarInt(), input);
+                Map<Object, Object> map = tag == TAG_MAP ? new HashMap<>() : new LinkedHashMap<>();
+                for (int i = 0; i < size; i++)
+                    map.put(readValue(input), readValue(input));
+                return map;
+            }
+            case TAG_SERIALIZED:
+                return MarshalHelper.byteToObject(input.readBytes());
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private Exception readException(MarshalInput input) throws IOException, ClassNotFoundException {
+        Object value = readValue(input);
+        if (value != null && !(value instanceof Exception))
+            throw new IOException("Expected an exception, got " + value.getClass().getName());
+        return (Exception) value;
+    }
+
+    /**
+     * Reject a count of elements read off the wire that the rest of the frame cannot hold,
+     * each element taking at least one byte, before anything is allocated for it.
+     */
+    private static int checkCount(int count, MarshalInput input) throws IOException {
+        if (count < 0 || count > input.available())
+            throw new IOException("Illegal element count " + count);
+        return count;
+    }
+}
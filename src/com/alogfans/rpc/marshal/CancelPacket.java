@@ -0,0 +1,19 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.Serializable;
+
+/**
+ * Sent by the client on the connection of a call it no longer waits for, e.g. cancelled
+ * or timed out. The server skips the call if it has not started yet, or signals the
+ * running invocation, and never sends its response.
+ */
+public class CancelPacket implements Serializable {
+    private static final long serialVersionUID = 6238589897120159526L;
+
+    public long requestId;
+
+    public CancelPacket setRequestId(long requestId) {
+        this.requestId = requestId;
+        return this;
+    }
+}
@@ -0,0 +1,26 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.IOException;
+
+/**
+ * Turns packets into frame bodies and back. Both ends of a connection must be configured
+ * with the same codec.
+ */
+public interface Codec {
+    /**
+     * Write the given packet into the frame buffer.
+     * @param object the packet for marshal
+     * @param output frame buffer of the outgoing frame
+     * @throws IOException
+     */
+    void encode(Object object, MarshalOutput output) throws IOException;
+
+    /**
+     * Read one packet from the body of a received frame.
+     * @param input body of the incoming frame
+     * @return the original packet
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    Object decode(MarshalInput input) throws IOException, ClassNotFoundException;
+}
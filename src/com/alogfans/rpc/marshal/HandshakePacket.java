@@ -0,0 +1,37 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.Serializable;
+
+/**
+ * First packet exchanged on a new connection. The client sends an empty one, the server
+ * answers with the signatures of all provided methods; the index of a signature is the
+ * method ID used by later requests and responses. When a provider is registered later on,
+ * the server sends the grown table again to every connected client; IDs are never reused,
+ * so requests in flight keep their meaning.
+ *
+ * Both also carry the optional features of the connection: the client offers those it
+ * supports, the server answers with those both support, in use from then on.
+ */
+public class HandshakePacket implements Serializable {
+    private static final long serialVersionUID = 6238589897120159526L;
+
+    /** Frames larger than a threshold may be compressed with deflate. */
+    public static final int FEATURE_COMPRESSION = 1;
+
+    public String[] signatures;
+    public int features;
+
+    public HandshakePacket setSignatures(String[] signatures) {
+        this.signatures = signatures;
+        return this;
+    }
+
+    public HandshakePacket setFeatures(int features) {
+        this.features = features;
+        return this;
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+}
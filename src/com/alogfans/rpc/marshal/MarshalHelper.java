@@ -1,6 +1,7 @@
 package com.alogfans.rpc.marshal;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Marshal helper class, which allows serialize objects (however it's NOT portable via languages)
@@ -48,6 +49,34 @@ public class MarshalHelper {
         return object;
     }
 
+    /**
+     * Marshal a packet into a complete frame (length header and body) with the given codec
+     * @param codec codec configured for the connection
+     * @param packet the packet for marshal
+     * @return buffer ready for writing to the socket channel
+     * @throws IOException
+     */
+    public static ByteBuffer encodeFrame(Codec codec, Object packet) throws IOException {
+        MarshalOutput marshalOutput = new MarshalOutput();
+        codec.encode(packet, marshalOutput);
+        return marshalOutput.toFrame();
+    }
+
+    /**
+     * Unmarshal a packet from a frame body with the given codec
+     * @param codec codec configured for the connection
+     * @param bytes buffer holding the frame body
+     * @param offset start of the body in the buffer
+     * @param length length of the body
+     * @return the original packet
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Object decodeFrame(Codec codec, byte[] bytes, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        return codec.decode(new MarshalInput(bytes, offset, length));
+    }
+
     /**
      * Convert INT32 to Little-endian order
      * @param value integer value
@@ -0,0 +1,106 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader over the body of one received frame, counterpart of <code>MarshalOutput</code>.
+ * It reads straight from the receive buffer, no intermediate copy is needed.
+ */
+public class MarshalInput extends InputStream {
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+
+    public MarshalInput(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public MarshalInput(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    @Override
+    public int read() {
+        if (position >= limit)
+            return -1;
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (position >= limit)
+            return -1;
+        int count = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buffer[position++];
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int value = (buffer[position] & 0xFF) << 24 |
+                (buffer[position + 1] & 0xFF) << 16 |
+                (buffer[position + 2] & 0xFF) << 8 |
+                buffer[position + 3] & 0xFF;
+        position += 4;
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt() - 1;
+        if (length < 0)
+            return null;
+        require(length);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readVarInt();
+        require(length);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, position, bytes, 0, length);
+        position += length;
+        return bytes;
+    }
+
+    private void require(int count) throws IOException {
+        if (count < 0 || position + count > limit)
+            throw new EOFException("Frame truncated");
+    }
+}
@@ -0,0 +1,127 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable frame buffer that codecs write into. The first bytes are reserved for the
+ * frame header, so the finished buffer goes to the socket without another copy.
+ */
+public class MarshalOutput extends OutputStream {
+    public static final int HEADER_SIZE = Integer.BYTES;
+
+    private byte[] buffer;
+    private int position;
+
+    public MarshalOutput() {
+        this(256);
+    }
+
+    public MarshalOutput(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, HEADER_SIZE + 16)];
+        position = HEADER_SIZE;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    public void writeByte(int value) {
+        write(value);
+    }
+
+    public void writeBoolean(boolean value) {
+        write(value ? 1 : 0);
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >> 24);
+        buffer[position++] = (byte) (value >> 16);
+        buffer[position++] = (byte) (value >> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Write an unsigned integer in 7-bit groups, small values (lengths, counts) take one byte.
+     * @param value non-negative integer
+     */
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        int length = value.length();
+        ensureCapacity(5 + length);
+        int start = position;
+        position++;         // optimistic one-byte length for short ASCII strings
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80 || length >= 0x7F) {
+                // not pure short ASCII, fall back to the general encoding
+                position = start;
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length + 1);
+                write(bytes, 0, bytes.length);
+                return;
+            }
+            buffer[position++] = (byte) c;
+        }
+        buffer[start] = (byte) (length + 1);
+    }
+
+    public void writeBytes(byte[] bytes) {
+        writeVarInt(bytes.length);
+        write(bytes, 0, bytes.length);
+    }
+
+    public int size() {
+        return position - HEADER_SIZE;
+    }
+
+    /**
+     * Finish the frame: fill in the header and expose the content without copying.
+     * @return buffer ready for writing to a channel, header included.
+     */
+    public ByteBuffer toFrame() {
+        int length = size();
+        buffer[0] = (byte) (length >> 24);
+        buffer[1] = (byte) (length >> 16);
+        buffer[2] = (byte) (length >> 8);
+        buffer[3] = (byte) length;
+        return ByteBuffer.wrap(buffer, 0, position);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, position + extra)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.alogfans.rpc.marshal;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+/**
+ * Client-side view of the method IDs published by a server during the handshake, and
+ * again each time a provider is registered afterwards. Interfaces are only known by name,
+ * clients match them with the interfaces of their own invokers rather than loading them.
+ */
+public class MethodTable {
+    private final HashMap<String, Integer> methodIds;
+    private final String[] interfaceNames;
+
+    public MethodTable(String[] signatures) {
+        methodIds = new HashMap<>();
+        interfaceNames = new String[signatures.length];
+        for (int i = 0; i < signatures.length; i++) {
+            if (signatures[i] == null)
+                continue;
+            methodIds.put(signatures[i], i);
+            interfaceNames[i] = signatures[i].substring(0, signatures[i].indexOf(':'));
+        }
+    }
+
+    /**
+     * Build the signature which identifies a method of a given interface and version
+     * on both ends.
+     * @param interfaceClass interface exposing the method
+     * @param version version of the service
+     * @param method the method itself
+     * @return the signature such as <code>a.b.IFoo:1.0#bar(int,java.lang.String)</code>
+     */
+    public static String signatureOf(Class<?> interfaceClass, String version, Method method) {
+        StringBuilder builder = new StringBuilder()
+                .append(interfaceClass.getName())
+                .append(':').append(version)
+                .append('#').append(method.getName())
+                .append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append(parameterTypes[i].getName());
+        }
+        return builder.append(')').toString();
+    }
+
+    /**
+     * @param signature signature built by <code>signatureOf()</code>
+     * @return the method ID, or -1 if the server does not provide such method.
+     */
+    public int idOf(String signature) {
+        Integer methodId = methodIds.get(signature);
+        return methodId == null ? -1 : methodId;
+    }
+
+    /**
+     * @param methodId method ID of a response
+     * @return the name of the interface exposing the method, or null if the ID is unknown.
+     */
+    public String interfaceNameOf(int methodId) {
+        if (methodId < 0 || methodId >= interfaceNames.length)
+            return null;
+        return interfaceNames[methodId];
+    }
+
+    /**
+     * @return the count of method IDs, a table published later never has fewer.
+     */
+    public int size() {
+        return interfaceNames.length;
+    }
+}
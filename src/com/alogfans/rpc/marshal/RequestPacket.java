@@ -2,19 +2,61 @@ package com.alogfans.rpc.marshal;
 
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Alogfans on 2015/8/1.
  */
 public class RequestPacket implements Serializable {
-    private static final long serialVersionUID = 6238589897120159526L;
+    private static final long serialVersionUID = 2470858812397442601L;
 
-    public String version;
-    public Class<?> interfaceClass;
-    public String method;
-    public Class<?>[] argTypes;
+    public long requestId;
+    public int methodId;
     public Object[] args;
 
+    // time the caller still waits for the response in milliseconds, 0 if unbounded. Only
+    // relative budgets cross the wire, so the clocks of both ends need not agree.
+    public int timeout;
+
+    // items the client may receive before granting more, if the result is streamed; 0 if
+    // the result is expected in one response
+    public int credits;
+
+    // System.nanoTime() on the server when the budget runs out, 0 if unbounded
+    public transient long deadline;
+
+    // set on the server once the client cancelled the call
+    public transient volatile boolean cancelled;
+
+    // descriptive fields, resolved locally on each end through the method table
+    public transient String version;
+    public transient Class<?> interfaceClass;
+    public transient String method;
+    public transient Class<?>[] argTypes;
+    public transient String signature;
+
+    // client connection carrying the call and when it was sent, set by RpcClient
+    public transient volatile Object route;
+    public transient long sendTime;
+
+    // value of the argument marked by RouteKey, if any
+    public transient Object routeKey;
+
+    public RequestPacket setRequestId(long requestId) {
+        this.requestId = requestId;
+        return this;
+    }
+
+    public RequestPacket setMethodId(int methodId) {
+        this.methodId = methodId;
+        return this;
+    }
+
+    public RequestPacket setSignature(String signature) {
+        this.signature = signature;
+        return this;
+    }
+
     public RequestPacket setVersion(String version) {
         this.version = version;
         return this;
@@ -35,6 +77,33 @@ public class RequestPacket implements Serializable {
         return interfaceClass.getMethod(method, argTypes);
     }
 
+    public RequestPacket setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public RequestPacket setCredits(int credits) {
+        this.credits = credits;
+        return this;
+    }
+
+    /**
+     * Turn the relative budget into a local deadline, on arrival at the server.
+     */
+    public RequestPacket startDeadline() {
+        deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        return this;
+    }
+
+    public boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    public RequestPacket setRouteKey(Object routeKey) {
+        this.routeKey = routeKey;
+        return this;
+    }
+
     public RequestPacket setArgs(Object[] args) {
         this.args = args;
         return this;
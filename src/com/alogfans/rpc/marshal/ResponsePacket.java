@@ -9,16 +9,27 @@ import java.util.Arrays;
  * Created by Alogfans on 2015/8/5.
  */
 public class ResponsePacket implements Serializable {
-    private static final long serialVersionUID = 6238589897120159526L;
+    private static final long serialVersionUID = 2470858812397442601L;
 
-    public Class<?> interfaceClass;
-    public String version;
-    public String method;
-    public Class<?>[] argTypes;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_SERVER_BUSY = 1;
+    public static final byte STATUS_DEADLINE_EXCEEDED = 2;
+
+    public long requestId;
+    public int methodId;
+    public byte status = STATUS_OK;
     public Object result = null;
     public Exception exception = null;
 
+    // descriptive fields, resolved locally on each end through the method table
+    public transient Class<?> interfaceClass;
+    public transient String version;
+    public transient String method;
+    public transient Class<?>[] argTypes;
+
     public ResponsePacket copyFromRequest(RequestPacket requestPacket) {
+        this.requestId = requestPacket.requestId;
+        this.methodId = requestPacket.methodId;
         this.interfaceClass = requestPacket.interfaceClass;
         this.version = requestPacket.version;
         this.method = requestPacket.method;
@@ -27,6 +38,11 @@ public class ResponsePacket implements Serializable {
         return this;
     }
 
+    public ResponsePacket setStatus(byte status) {
+        this.status = status;
+        return this;
+    }
+
     public ResponsePacket setException(Exception exception) {
         this.exception = exception;
         return this;
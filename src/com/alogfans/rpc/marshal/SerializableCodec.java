@@ -0,0 +1,24 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Codec relying on Java serialization. Every frame carries full class descriptors, so it
+ * is only kept for packets the binary codec cannot express.
+ */
+public class SerializableCodec implements Codec {
+    @Override
+    public void encode(Object object, MarshalOutput output) throws IOException {
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(output);
+        objectOutputStream.writeObject(object);
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public Object decode(MarshalInput input) throws IOException, ClassNotFoundException {
+        ObjectInputStream objectInputStream = new ObjectInputStream(input);
+        return objectInputStream.readObject();
+    }
+}
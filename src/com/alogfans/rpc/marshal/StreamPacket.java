@@ -0,0 +1,55 @@
+package com.alogfans.rpc.marshal;
+
+import java.io.Serializable;
+
+/**
+ * One frame of a streamed result. The server answers a call returning an
+ * <code>Iterator</code> or a <code>Stream</code> with chunks of items, never sending more
+ * items than the client granted credits for. The client grants the initial credits in its
+ * request, then more as it consumes the items.
+ */
+public class StreamPacket implements Serializable {
+    private static final long serialVersionUID = 6238589897120159526L;
+
+    /** Items of the result, more follow. */
+    public static final byte TYPE_DATA = 1;
+    /** Last items of the result, possibly none. */
+    public static final byte TYPE_END = 2;
+    /** The result failed after the items sent so far. */
+    public static final byte TYPE_ERROR = 3;
+    /** Sent by the client, the server may send that many more items. */
+    public static final byte TYPE_CREDIT = 4;
+
+    public long requestId;
+    public int methodId;
+    public byte type;
+    public Object[] items = null;
+    public Exception exception = null;
+    public int credits;
+
+    public StreamPacket copyFromRequest(RequestPacket requestPacket) {
+        this.requestId = requestPacket.requestId;
+        this.methodId = requestPacket.methodId;
+        return this;
+    }
+
+    public StreamPacket setType(byte type) {
+        this.type = type;
+        return this;
+    }
+
+    public StreamPacket setItems(Object[] items) {
+        this.items = items;
+        return this;
+    }
+
+    public StreamPacket setException(Exception exception) {
+        this.exception = exception;
+        return this;
+    }
+
+    public StreamPacket setCredits(int credits) {
+        this.credits = credits;
+        return this;
+    }
+}
@@ -0,0 +1,188 @@
+package com.alogfans.rpc.stub;
+
+import com.alogfans.rpc.hook.InvokerHook;
+import com.alogfans.rpc.marshal.BatchResponsePacket;
+import com.alogfans.rpc.marshal.RequestPacket;
+import com.alogfans.rpc.marshal.ResponsePacket;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Calls to one service gathered on the client and sent in a single frame. The server runs
+ * them as a group and answers them all in one frame, saving the framing, system calls and
+ * dispatching of each call on both ends. With a service declaring
+ * <code>String lookup(int id)</code>:
+ * <pre>
+ *     Batch batch = invoker.newBatch();
+ *     CompletableFuture&lt;Object&gt; first = batch.add("lookup", 1);
+ *     CompletableFuture&lt;Object&gt; second = batch.add("lookup", 2);
+ *     List&lt;Object&gt; results = batch.execute();
+ * </pre>
+ * A batch is built by one thread and sent once.
+ */
+public class Batch {
+    private final Invoker invoker;
+    private final List<RequestPacket> requestPackets = new ArrayList<>();
+    private final List<CompletableFuture<Object>> futures = new ArrayList<>();
+    private boolean parallel = false;
+    private int timeout = 0;
+    private boolean sent = false;
+
+    Batch(Invoker invoker) {
+        this.invoker = invoker;
+    }
+
+    /**
+     * Let the server run the calls concurrently on its workers, each in the execution mode
+     * of its provider. By default they run in order, one after another, on a single worker:
+     * in the mode of their providers if all of them agree, else in that of the server.
+     * @param parallel true to run the calls concurrently
+     * @return the caller Batch itself.
+     */
+    public Batch setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * Bound the time waited for the responses of the whole batch.
+     * @param timeout timeout in milliseconds, 0 to use the timeout of the invoker
+     * @return the caller Batch itself.
+     */
+    public Batch setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Add a call to the batch.
+     * @param method method of the interface
+     * @param args arguments of the call
+     * @return future of the result of this call, completed once the batch is answered.
+     */
+    public CompletableFuture<Object> add(Method method, Object... args) {
+        if (sent)
+            throw new IllegalStateException("Batch sent already.");
+
+        requestPackets.add(invoker.prepareRequestPacket(method, args, 0));
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Add a call of the method of the given name to the batch.
+     * @param methodName name of the method, overloads are told apart by the arguments
+     * @param args arguments of the call
+     * @return future of the result of this call, completed once the batch is answered.
+     * @throws IllegalArgumentException if no such method matches the arguments
+     */
+    public CompletableFuture<Object> add(String methodName, Object... args) throws IllegalArgumentException {
+        Method method = invoker.findMethod(methodName, args);
+        if (method == null)
+            throw new IllegalArgumentException("Method " + methodName + " not found in "
+                    + invoker.getInterfaceClass().getName() + ".");
+        return add(method, args);
+    }
+
+    public int size() {
+        return requestPackets.size();
+    }
+
+    /**
+     * Send the batch without blocking. Cancelling the future cancels the remaining calls on
+     * the server.
+     * @return future of the results in the order of the calls, completed exceptionally with
+     * the first failure of a call. The results of the others are still found in their own
+     * futures.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<Object>> send() {
+        if (sent)
+            throw new IllegalStateException("Batch sent already.");
+        sent = true;
+        if (requestPackets.isEmpty())
+            return CompletableFuture.completedFuture(new ArrayList<>());
+
+        CompletableFuture<Object> future = invoker.invokeBatch(this);
+        future.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object results, Throwable throwable) {
+                // the batch failed as a whole, e.g. timed out, so did each call not answered yet
+                if (throwable != null) {
+                    for (CompletableFuture<Object> callFuture : futures)
+                        callFuture.completeExceptionally(throwable);
+                }
+            }
+        });
+        return (CompletableFuture<List<Object>>) (CompletableFuture<?>) future;
+    }
+
+    /**
+     * Send the batch and wait for all of its responses.
+     * @return results in the order of the calls.
+     * @throws RuntimeException wrapping the first failure of a call
+     */
+    public List<Object> execute() {
+        try {
+            return send().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException)
+                throw new RuntimeException("Time out", e.getCause());
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    RequestPacket[] getRequests() {
+        return requestPackets.toArray(new RequestPacket[requestPackets.size()]);
+    }
+
+    boolean isParallel() {
+        return parallel;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Complete the future of each call, in the callback executor. The result of the batch
+     * becomes the list of results, and its exception the first failure of a call.
+     * @param invokerHook hook of the invoker, told of each call as its result arrives, may be null
+     */
+    void complete(BatchResponsePacket batchResponsePacket, InvokerHook invokerHook) {
+        ResponsePacket[] responsePackets = batchResponsePacket.responses;
+        Object[] results = new Object[futures.size()];
+        for (int i = 0; i < results.length; i++) {
+            ResponsePacket responsePacket = i < responsePackets.length ? responsePackets[i] : null;
+            if (responsePacket == null) {
+                responsePacket = new ResponsePacket().setException(new IllegalStateException("Call not answered"));
+            }
+            Invoker.resolveStatus(responsePacket);
+            if (invokerHook != null)
+                invokerHook.after(requestPackets.get(i));
+
+            if (responsePacket.exception != null) {
+                if (batchResponsePacket.exception == null)
+                    batchResponsePacket.exception = responsePacket.exception;
+                futures.get(i).completeExceptionally(responsePacket.exception);
+            } else {
+                results[i] = responsePacket.result;
+                futures.get(i).complete(responsePacket.result);
+            }
+        }
+        batchResponsePacket.result = Arrays.asList(results);
+    }
+}
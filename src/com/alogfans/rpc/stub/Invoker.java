@@ -1,18 +1,36 @@
 package com.alogfans.rpc.stub;
 
+import com.alogfans.rpc.async.HashedWheelTimer;
+import com.alogfans.rpc.async.InFlightWindow;
+import com.alogfans.rpc.async.PendingCallTable;
 import com.alogfans.rpc.async.ResponseCallbackListener;
 import com.alogfans.rpc.async.ResponseFuture;
+import com.alogfans.rpc.async.SerialExecutor;
+import com.alogfans.rpc.balance.RouteKey;
+import com.alogfans.rpc.cache.Cacheable;
+import com.alogfans.rpc.cache.ResultCache;
+import com.alogfans.rpc.control.OverflowPolicy;
 import com.alogfans.rpc.control.RpcClient;
 import com.alogfans.rpc.hook.InvokerHook;
+import com.alogfans.rpc.marshal.BatchRequestPacket;
+import com.alogfans.rpc.marshal.BatchResponsePacket;
+import com.alogfans.rpc.marshal.MethodTable;
 import com.alogfans.rpc.marshal.RequestPacket;
 import com.alogfans.rpc.marshal.ResponsePacket;
+import com.alogfans.rpc.marshal.StreamPacket;
 
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Redirect methods for executing remotely.
@@ -25,10 +43,21 @@ public class Invoker implements InvocationHandler {
     private Object instance = null;
     private String version;
     private InvokerHook invokerHook = null;
+    private boolean orderedCallbacks = false;
+    private Executor serialCallbackExecutor = null;
 
+    // timeout of calls in milliseconds, 0 to follow RpcClient
+    private int timeout = 0;
+
+    // credits of the calls in flight through this invoker, null if unbounded
+    private volatile InFlightWindow window = null;
+
+    // items of a streamed result buffered at most, granted to the server as credits
+    private int streamWindow = 256;
 
     class WaitChainObject {
-        public WaitChainObject(boolean isBlocking) {
+        public WaitChainObject(RequestPacket requestPacket, boolean isBlocking) {
+            this.requestPacket = requestPacket;
             this.isBlocking = isBlocking;
             this.responsePacket = null;
         }
@@ -38,21 +67,110 @@ public class Invoker implements InvocationHandler {
             return this;
         }
 
-        public WaitChainObject setResponseCallbackListener(ResponseCallbackListener responseCallbackListener) {
-            this.responseCallbackListener = responseCallbackListener;
+        public WaitChainObject setWaiter(Thread waiter) {
+            this.waiter = waiter;
+            return this;
+        }
+
+        /**
+         * Park the calling thread until the response arrives or the timeout elapses.
+         * @param timeout maximum time to wait in milliseconds
+         * @return the response, or null if timed out.
+         */
+        public ResponsePacket awaitResponse(long timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (responsePacket == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return responsePacket;
+        }
+
+        public void wakeUp(ResponsePacket response) {
+            responsePacket = response;
+            LockSupport.unpark(waiter);
+        }
+
+        public WaitChainObject setFuture(CompletableFuture<Object> future) {
+            this.future = future;
             return this;
         }
 
+        public WaitChainObject setBatch(Batch batch) {
+            this.batch = batch;
+            return this;
+        }
+
+        public WaitChainObject setStream(RemoteIterator<Object> stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        public WaitChainObject setWindow(InFlightWindow window) {
+            this.window = window;
+            return this;
+        }
+
+        public WaitChainObject setTimeout(HashedWheelTimer.Timeout timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        public void cancelTimeout() {
+            // may be removed before armed, the timeout then finds no entry and does nothing
+            HashedWheelTimer.Timeout timeout = this.timeout;
+            if (timeout != null)
+                timeout.cancel();
+        }
+
+        public RequestPacket requestPacket;
         public boolean isBlocking;
-        public ResponsePacket responsePacket; // valid only for blocking
-        public ResponseCallbackListener responseCallbackListener;   // valid only for non-blocking
+        public Thread waiter;   // valid only for blocking
+        public volatile ResponsePacket responsePacket; // valid only for blocking
+        public CompletableFuture<Object> future;   // valid only for non-blocking
+        public volatile HashedWheelTimer.Timeout timeout;    // valid only for non-blocking
+        public InFlightWindow window;   // holding one of its credits, if not null
+        public RemoteIterator<Object> stream;   // valid only for streamed results
+        public Batch batch;     // valid only for batches
+    }
+
+    /**
+     * Future of an async call, cancelling it also cancels the call on the server.
+     */
+    class CallFuture extends CompletableFuture<Object> {
+        volatile long requestId = 0;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && requestId != 0)
+                cancelCall(requestId);
+            return cancelled;
+        }
     }
 
-    private CountDownLatch blockLatch = new CountDownLatch(1);
-    private ConcurrentHashMap<RequestPacket, WaitChainObject> waitChainObjects;
+    // outstanding calls keyed by call ID, so responses are matched in O(1)
+    private PendingCallTable<WaitChainObject> waitChainObjects;
+
+    // method signatures are built once, the method table of RpcClient maps them to IDs
+    private ConcurrentHashMap<Method, String> signatures;
+
+    // position of the argument marked by RouteKey for each method, -1 if none
+    private ConcurrentHashMap<Method, Integer> routeKeyIndexes;
+
+    // results of the methods marked Cacheable, NOT_CACHEABLE for the others
+    private static final ResultCache NOT_CACHEABLE = new ResultCache(0, 1);
+    private ConcurrentHashMap<Method, ResultCache> resultCaches;
 
     public Invoker() {
-        waitChainObjects = new ConcurrentHashMap<>();
+        waitChainObjects = new PendingCallTable<>();
+        signatures = new ConcurrentHashMap<>();
+        routeKeyIndexes = new ConcurrentHashMap<>();
+        resultCaches = new ConcurrentHashMap<>();
     }
 
     public Invoker setInterfaceClass(Class<?> interfaceClass) {
@@ -62,11 +180,63 @@ public class Invoker implements InvocationHandler {
 
     public Invoker setRpcClient(RpcClient rpcClient) {
         this.rpcClient = rpcClient;
+        this.serialCallbackExecutor = null;
         return this;
     }
 
     public Invoker setVersion(String version) {
         this.version = version;
+        signatures.clear();
+        return this;
+    }
+
+    /**
+     * Bound the time waited for responses of calls through this invoker.
+     * @param timeout timeout in milliseconds, 0 to use the timeout of RpcClient
+     * @return the caller Invoker itself.
+     */
+    public Invoker setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public int getTimeout() {
+        return timeout > 0 ? timeout : rpcClient.getTimeout();
+    }
+
+    /**
+     * Bound the calls in flight through this invoker, whatever connections they are sent on.
+     * Calls beyond it are handled by the overflow policy of RpcClient.
+     * @param maxInFlight maximum of calls sent and not finished, 0 for unbounded
+     * @return the caller Invoker itself.
+     */
+    public Invoker setMaxInFlight(int maxInFlight) {
+        // calls in flight keep giving back their credits to the window they took them from
+        this.window = maxInFlight <= 0 ? null : new InFlightWindow(maxInFlight, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                rpcClient.getCallbackExecutor().execute(task);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * @return credits of the calls in flight through this invoker, null if unbounded.
+     */
+    public InFlightWindow getWindow() {
+        return window;
+    }
+
+    /**
+     * Bound the items of a streamed result buffered by this client. Methods returning
+     * <code>Iterator</code> or <code>Stream</code> get their result in chunks, and the
+     * server never sends more items than the window allows until some are consumed.
+     * @param streamWindow count of items, 256 by default
+     * @return the caller Invoker itself.
+     */
+    public Invoker setStreamWindow(int streamWindow) {
+        this.streamWindow = Math.max(streamWindow, 1);
         return this;
     }
 
@@ -75,10 +245,38 @@ public class Invoker implements InvocationHandler {
         return this;
     }
 
+    /**
+     * Deliver the callbacks of async calls of this invoker one at a time, in the order
+     * their responses arrived.
+     * @param orderedCallbacks true for ordered callbacks
+     * @return the caller Invoker itself.
+     */
+    public Invoker setOrderedCallbacks(boolean orderedCallbacks) {
+        this.orderedCallbacks = orderedCallbacks;
+        return this;
+    }
+
     public Class<?> getInterfaceClass() {
         return interfaceClass;
     }
 
+    /**
+     * @param method method of the interface
+     * @return results of the method with their statistics, null if it is not
+     * <code>Cacheable</code>.
+     */
+    public ResultCache getResultCache(Method method) {
+        return resultCacheOf(method);
+    }
+
+    /**
+     * Drop the cached results of all methods, e.g. once the data behind them changed.
+     */
+    public void invalidateResultCaches() {
+        for (ResultCache resultCache : resultCaches.values())
+            resultCache.invalidateAll();
+    }
+
     public Object getInstance() {
         if (instance == null) {
             instance = Proxy.newProxyInstance(this.getClass().getClassLoader(),
@@ -89,99 +287,629 @@ public class Invoker implements InvocationHandler {
         return instance;
     }
 
+    /**
+     * Create an async view of the remote interface. Each method of the view is bound to the
+     * method of the interface with the same parameter types and the same name, with an
+     * optional <code>Async</code> suffix, and returns a future of its result:
+     * <pre>
+     *     interface ISayHelloAsync {
+     *         CompletableFuture&lt;String&gt; sayHelloAsync();
+     *     }
+     * </pre>
+     * @param asyncInterfaceClass the async view, its methods must return CompletableFuture
+     * @return proxy of the async view, sending calls through this invoker.
+     * @throws IllegalArgumentException if a method has no counterpart in the interface
+     */
+    public <T> T getAsyncInstance(Class<T> asyncInterfaceClass) throws IllegalArgumentException {
+        final Map<Method, Method> boundMethods = new HashMap<>();
+        for (Method asyncMethod : asyncInterfaceClass.getMethods()) {
+            if (!asyncMethod.getReturnType().isAssignableFrom(CompletableFuture.class))
+                throw new IllegalArgumentException("Method " + asyncMethod.getName() + " should return CompletableFuture.");
+
+            String methodName = asyncMethod.getName();
+            if (methodName.endsWith("Async") && methodName.length() > "Async".length())
+                methodName = methodName.substring(0, methodName.length() - "Async".length());
+            try {
+                boundMethods.put(asyncMethod, interfaceClass.getMethod(methodName, asyncMethod.getParameterTypes()));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("Method " + asyncMethod.getName() + " not found in "
+                        + interfaceClass.getName() + ".", e);
+            }
+        }
+
+        return asyncInterfaceClass.cast(Proxy.newProxyInstance(asyncInterfaceClass.getClassLoader(),
+                new Class<?>[] {asyncInterfaceClass},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class)
+                            return method.invoke(this, args);
+                        return invokeAsync(boundMethods.get(method), args);
+                    }
+                }));
+    }
+
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (RemoteIterator.isStreamed(method))
+            return invokeStream(method, args);
+
+        // answered without sending anything, hooks included
+        ResultCache resultCache = resultCacheOf(method);
+        long cacheEpoch = 0;
+        if (resultCache != null) {
+            cacheEpoch = resultCache.getEpoch(args);
+            Object cached = resultCache.get(args);
+            if (cached != ResultCache.MISS)
+                return cached;
+        }
+
         Object result = null;
 
-        RequestPacket requestPacket = new RequestPacket()
-                .setInterfaceClass(interfaceClass)
-                .setMethod(method)
-                .setArgs(args)
-                .setVersion(version);
+        long timeout = callTimeout(getTimeout());
+        InFlightWindow window = this.window;
+        if (window != null)
+            timeout = acquireCredit(window, timeout);
+        RequestPacket requestPacket = prepareRequestPacket(window, method, args, timeout);
 
-        if (invokerHook != null)
-            invokerHook.before(requestPacket);
+        // register before sending, the response may arrive before send returns
+        WaitChainObject waitChainObject = new WaitChainObject(requestPacket, true)
+                .setWaiter(Thread.currentThread())
+                .setWindow(window);
+        waitChainObjects.put(requestPacket.requestId, waitChainObject);
 
         rpcClient.sendRequestPacket(requestPacket);
 
-        waitChainObjects.put(requestPacket, new WaitChainObject(true));
-
-        blockLatch.await(rpcClient.getTimeout(), TimeUnit.MILLISECONDS);
-        blockLatch = new CountDownLatch(1);
+        // each call parks on its own slot, so concurrent callers never steal wake-ups
+        ResponsePacket responsePacket = null;
+        try {
+            responsePacket = waitChainObject.awaitResponse(timeout);
+        } finally {
+            if (waitChainObjects.remove(requestPacket.requestId) != null) {
+                if (responsePacket == null)     // timed out or interrupted
+                    rpcClient.cancelRequestPacket(requestPacket);
+                finishCall(waitChainObject, responsePacket);
+            }
+        }
 
-        ResponsePacket responsePacket = waitChainObjects.get(requestPacket).responsePacket;
-        waitChainObjects.remove(requestPacket);
+        if (responsePacket == null)
+            throw new RuntimeException("Time out", new TimeoutException());
 
         result = responsePacket.result;
 
         if (invokerHook != null)
             invokerHook.after(requestPacket);
 
+        if (responsePacket.exception instanceof TimeoutException)
+            throw new RuntimeException("Time out", responsePacket.exception);
         if (responsePacket.exception != null)
             throw responsePacket.exception;
 
+        if (resultCache != null)
+            resultCache.put(args, result, cacheEpoch);
         return result;
     }
 
+    /**
+     * Call a method returning <code>Iterator</code> or <code>Stream</code>. Returns at once,
+     * the items are then read from the server as the caller consumes them.
+     */
+    private Object invokeStream(Method method, Object[] args) throws InterruptedException {
+        long timeout = callTimeout(getTimeout());
+        InFlightWindow window = this.window;
+        if (window != null)
+            timeout = acquireCredit(window, timeout);
+        RequestPacket requestPacket = prepareRequestPacket(window, method, args, timeout)
+                .setCredits(streamWindow);
+
+        RemoteIterator<Object> stream = new RemoteIterator<>(this, requestPacket, streamWindow, timeout);
+        waitChainObjects.put(requestPacket.requestId, new WaitChainObject(requestPacket, false)
+                .setStream(stream)
+                .setWindow(window));
+        rpcClient.sendRequestPacket(requestPacket);
+
+        return method.getReturnType() == Stream.class ? stream.stream() : stream;
+    }
+
+    /**
+     * Call the method without blocking. The future is completed in the callback executor
+     * of RpcClient, and is also set as the <code>ResponseFuture</code> of the calling thread.
+     * @param method method of the interface
+     * @param args arguments of the call
+     * @return future of the result, completed exceptionally if the call failed or timed out.
+     */
+    public CompletableFuture<Object> invokeAsync(Method method, Object... args) {
+        return invokeAsync(getTimeout(), method, args);
+    }
+
+    /**
+     * Call the method without blocking, with a deadline of its own.
+     * @param timeout timeout of this call in milliseconds
+     * @param method method of the interface
+     * @param args arguments of the call
+     * @return future of the result, completed with <code>TimeoutException</code> if no
+     * response arrives in time. Cancelling it cancels the call on the server as well.
+     */
+    public CompletableFuture<Object> invokeAsync(long timeout, Method method, Object... args) {
+        ResultCache resultCache = resultCacheOf(method);
+        if (resultCache != null) {
+            Object cached = resultCache.get(args);
+            if (cached != ResultCache.MISS) {
+                CompletableFuture<Object> future = CompletableFuture.completedFuture(cached);
+                ResponseFuture.setFuture(future);
+                return future;
+            }
+        }
+
+        CallFuture future = new CallFuture();
+        ResponseFuture.setFuture(future);
+        if (resultCache != null) {
+            long cacheEpoch = resultCache.getEpoch(args);
+            future.whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object result, Throwable throwable) {
+                    if (throwable == null)
+                        resultCache.put(args, result, cacheEpoch);
+                }
+            });
+        }
+        submitAsyncCall(future, callTimeout(timeout), new LongFunction<RequestPacket>() {
+            @Override
+            public RequestPacket apply(long callTimeout) {
+                return prepareRequestPacket(method, args, callTimeout);
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Create a batch of calls to this service, sent in one frame.
+     * @return an empty batch
+     */
+    public Batch newBatch() {
+        return new Batch(this);
+    }
+
+    /**
+     * Send the calls of the batch as one async call.
+     * @return future of the list of results, completed once all calls are answered.
+     */
+    CompletableFuture<Object> invokeBatch(Batch batch) {
+        CallFuture future = new CallFuture();
+        long timeout = batch.getTimeout() > 0 ? batch.getTimeout() : getTimeout();
+        submitAsyncCall(future, callTimeout(timeout), new LongFunction<RequestPacket>() {
+            @Override
+            public RequestPacket apply(long callTimeout) {
+                RequestPacket[] requestPackets = batch.getRequests();
+                return new BatchRequestPacket()
+                        .setRequests(requestPackets)
+                        .setParallel(batch.isParallel())
+                        .setRequestId(rpcClient.nextRequestId())
+                        .setTimeout(callTimeout < Integer.MAX_VALUE ? (int) callTimeout : 0)
+                        .setInterfaceClass(interfaceClass)
+                        .setSignature(requestPackets[0].signature)
+                        .setVersion(version);
+            }
+        }, batch);
+        return future;
+    }
+
+    /**
+     * Start an async call once it holds a credit of the window, following the overflow
+     * policy of RpcClient if none is left. The caller is never blocked: with BLOCK the call
+     * is delayed as with DELAY.
+     * @param request prepares the request, given the time left for the call
+     */
+    private void submitAsyncCall(CallFuture future, long callTimeout, LongFunction<RequestPacket> request, Batch batch) {
+        InFlightWindow window = this.window;
+        if (window == null || window.tryAcquire()) {
+            startAsyncCall(future, window, callTimeout, request, batch);
+            return;
+        }
+
+        switch (rpcClient.getOverflowPolicy()) {
+            case FAIL_FAST:
+                future.completeExceptionally(new RejectedExecutionException("Too many calls in flight"));
+                break;
+            default:
+                long delayTime = System.nanoTime();
+                if (!window.delay(new Runnable() {
+                    @Override
+                    public void run() {
+                        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - delayTime);
+                        startAsyncCall(future, window, callTimeout - waited, request, batch);
+                    }
+                })) {
+                    future.completeExceptionally(new RejectedExecutionException("Too many calls delayed"));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Send an async call holding a credit of the window, if not null. The credit is given
+     * back once the call finishes, or at once if it is not sent.
+     */
+    private void startAsyncCall(CallFuture future, InFlightWindow window, long callTimeout,
+                                LongFunction<RequestPacket> request, Batch batch) {
+        if (future.isDone() || callTimeout <= 0) {
+            // cancelled, or out of time while waiting for the credit, completing does nothing if cancelled
+            if (window != null)
+                window.release();
+            future.completeExceptionally(new TimeoutException("No credit within the timeout"));
+            return;
+        }
+
+        WaitChainObject waitChainObject = null;
+        try {
+            RequestPacket requestPacket = request.apply(callTimeout);
+            waitChainObject = new WaitChainObject(requestPacket, false)
+                    .setFuture(future)
+                    .setBatch(batch)
+                    .setWindow(window);
+            waitChainObjects.put(requestPacket.requestId, waitChainObject);
+            future.requestId = requestPacket.requestId;
+
+            // armed before sending, so the response always finds the timeout to cancel
+            final long requestId = requestPacket.requestId;
+            waitChainObject.setTimeout(rpcClient.getTimer().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    expireCall(requestId, callTimeout);
+                }
+            }, callTimeout, TimeUnit.MILLISECONDS));
+
+            rpcClient.sendRequestPacket(requestPacket, true);
+        } catch (Exception e) {
+            if (waitChainObject == null) {
+                if (window != null)
+                    window.release();
+            } else if (waitChainObjects.remove(waitChainObject.requestPacket.requestId) != null) {
+                waitChainObject.cancelTimeout();
+                finishCall(waitChainObject, null);
+            }
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Call the method of the given name without blocking.
+     * @param methodName name of the method, overloads are told apart by the arguments
+     * @param args arguments of the call
+     * @return future of the result, completed exceptionally if the call failed.
+     */
+    public CompletableFuture<Object> invokeAsync(String methodName, Object... args) {
+        Method method = findMethod(methodName, args);
+        if (method == null) {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            future.completeExceptionally(new NoSuchMethodException(interfaceClass.getName() + "." + methodName));
+            ResponseFuture.setFuture(future);
+            return future;
+        }
+        return invokeAsync(method, args);
+    }
+
     public void asyncInvoke(String methodName) {
         asyncInvoke(methodName, null);
     }
 
     public void cancelInvoke(String methodName) {
-        Iterator<RequestPacket> iterator = waitChainObjects.keySet().iterator();
-        while (iterator.hasNext()) {
-            RequestPacket requestPacket = iterator.next();
-            if (requestPacket.method.equals(methodName) && !waitChainObjects.get(requestPacket).isBlocking) {
+        for (long requestId : waitChainObjects.keys()) {
+            WaitChainObject waitChainObject = waitChainObjects.get(requestId);
+            if (waitChainObject != null && !waitChainObject.isBlocking
+                    && methodName.equals(waitChainObject.requestPacket.method)) {
                 // found async, stop listening it
-                waitChainObjects.remove(requestPacket);
+                cancelCall(requestId);
+            }
+        }
+    }
+
+    /**
+     * Stop waiting for the async call or streamed result, and tell the server to drop it.
+     * @return false if the call has already finished.
+     */
+    boolean cancelCall(long requestId) {
+        WaitChainObject waitChainObject = waitChainObjects.remove(requestId);
+        if (waitChainObject == null)
+            return false;
+
+        waitChainObject.cancelTimeout();
+        rpcClient.cancelRequestPacket(waitChainObject.requestPacket);
+        finishCall(waitChainObject, null);
+        if (waitChainObject.future != null)
+            waitChainObject.future.cancel(false);
+        if (waitChainObject.stream != null)
+            waitChainObject.stream.onError(new CancellationException());
+        return true;
+    }
+
+    void grantCredits(RequestPacket requestPacket, int credits) {
+        rpcClient.grantCredits(requestPacket, credits);
+    }
+
+    /**
+     * Fail all calls pending on the given route of RpcClient, e.g. a closed connection.
+     * @param route the route the calls were sent on
+     * @param exception the exception thrown to callers
+     */
+    public void abortCalls(Object route, Exception exception) {
+        for (long requestId : waitChainObjects.keys()) {
+            WaitChainObject waitChainObject = waitChainObjects.get(requestId);
+            if (waitChainObject != null && waitChainObject.requestPacket.route == route) {
+                notifyResponse(new ResponsePacket()
+                        .copyFromRequest(waitChainObject.requestPacket)
+                        .setException(exception));
             }
         }
     }
 
-    public <T extends ResponseCallbackListener> void asyncInvoke(String methodName, T callbackListener) {
+    /**
+     * Call the method of the given name without blocking, and notify the listener of the
+     * outcome in the callback executor of RpcClient.
+     * @param methodName name of the method, overloads are told apart by the arguments
+     * @param callbackListener listener of the outcome, may be null
+     * @param args arguments of the call
+     */
+    public <T extends ResponseCallbackListener> void asyncInvoke(String methodName, T callbackListener, Object... args) {
+        CompletableFuture<Object> future = invokeAsync(methodName, args);
+        if (callbackListener == null)
+            return;
+
+        future.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable throwable) {
+                if (throwable == null) {
+                    callbackListener.onResponse(result);
+                } else if (throwable instanceof TimeoutException) {
+                    callbackListener.onTimeout();
+                } else if (!(throwable instanceof CancellationException)) {
+                    callbackListener.onException(throwable instanceof Exception
+                            ? (Exception) throwable : new ExecutionException(throwable));
+                }
+            }
+        });
+    }
+
+    /**
+     * Take a credit of the window, waiting for it unless the overflow policy is to fail fast.
+     * @return the time left for the call itself, in milliseconds.
+     */
+    private long acquireCredit(InFlightWindow window, long timeout) throws InterruptedException {
+        if (window.tryAcquire())
+            return timeout;
+        if (rpcClient.getOverflowPolicy() == OverflowPolicy.FAIL_FAST)
+            throw new RejectedExecutionException("Too many calls in flight");
+
+        long startTime = System.nanoTime();
+        if (!window.acquire(timeout, TimeUnit.MILLISECONDS))
+            throw new RuntimeException("Time out", new TimeoutException("No credit within " + timeout + " ms"));
+        return Math.max(timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), 1);
+    }
+
+    /**
+     * Let RpcClient account for the finished call and give back its credit, exactly once
+     * per call, by whoever removed it from the pending calls.
+     */
+    private void finishCall(WaitChainObject waitChainObject, ResponsePacket responsePacket) {
+        rpcClient.finishRequestPacket(waitChainObject.requestPacket, responsePacket);
+        if (waitChainObject.window != null)
+            waitChainObject.window.release();
+    }
+
+    /**
+     * Bound the timeout of a call made while serving another call, by the time the caller
+     * of that call still waits.
+     */
+    private long callTimeout(long timeout) {
+        RpcContext rpcContext = RpcContext.getContext();
+        if (rpcContext == null || !rpcContext.hasDeadline())
+            return timeout;
+        return Math.min(timeout, Math.max(rpcContext.getRemainingTime(TimeUnit.MILLISECONDS), 1));
+    }
+
+    /**
+     * Prepare the request of a call holding a credit of the window, if not null. The credit
+     * is given back if the request cannot be prepared.
+     */
+    private RequestPacket prepareRequestPacket(InFlightWindow window, Method method, Object[] args, long timeout) {
         try {
+            return prepareRequestPacket(method, args, timeout);
+        } catch (RuntimeException e) {
+            if (window != null)
+                window.release();
+            throw e;
+        }
+    }
 
-            Method method = interfaceClass.getMethod(methodName);
-            RequestPacket requestPacket = new RequestPacket()
-                    .setInterfaceClass(interfaceClass)
-                    .setMethod(method)
-                    .setArgs(null)
-                    .setVersion(version);
+    RequestPacket prepareRequestPacket(Method method, Object[] args, long timeout) {
+        RequestPacket requestPacket = new RequestPacket()
+                .setRequestId(rpcClient.nextRequestId())
+                .setTimeout(timeout < Integer.MAX_VALUE ? (int) timeout : 0)
+                .setInterfaceClass(interfaceClass)
+                .setMethod(method)
+                .setSignature(signatureOf(method))
+                .setArgs(args != null && args.length == 0 ? null : args)
+                .setRouteKey(routeKeyOf(method, args))
+                .setVersion(version);
 
-            if (invokerHook != null)
-                invokerHook.before(requestPacket);
+        if (invokerHook != null)
+            invokerHook.before(requestPacket);
+        return requestPacket;
+    }
 
-            rpcClient.sendRequestPacket(requestPacket);
+    /**
+     * Find the method by name and arguments. Arguments are matched against the parameter
+     * types after boxing, so overloads of different arity or types are told apart.
+     */
+    Method findMethod(String methodName, Object[] args) {
+        int countArgs = args == null ? 0 : args.length;
+        for (Method method : interfaceClass.getMethods()) {
+            if (!method.getName().equals(methodName) || method.getParameterCount() != countArgs)
+                continue;
+
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            boolean matched = true;
+            for (int i = 0; i < countArgs && matched; i++) {
+                if (args[i] == null)
+                    matched = !parameterTypes[i].isPrimitive();
+                else
+                    matched = MethodType.methodType(parameterTypes[i]).wrap().returnType().isInstance(args[i]);
+            }
+            if (matched)
+                return method;
+        }
+        return null;
+    }
 
-            waitChainObjects.put(requestPacket,
-                    new WaitChainObject(false).setResponseCallbackListener(callbackListener));
+    private String signatureOf(Method method) {
+        String signature = signatures.get(method);
+        if (signature == null) {
+            signature = MethodTable.signatureOf(interfaceClass, version, method);
+            signatures.put(method, signature);
+        }
+        return signature;
+    }
 
-        } catch (Exception e) {
-            callbackListener.onException(e);
+    private ResultCache resultCacheOf(Method method) {
+        ResultCache resultCache = resultCaches.get(method);
+        if (resultCache == null) {
+            Cacheable cacheable = method.getAnnotation(Cacheable.class);
+            resultCache = cacheable == null || RemoteIterator.isStreamed(method) ? NOT_CACHEABLE : new ResultCache(cacheable);
+            ResultCache previous = resultCaches.putIfAbsent(method, resultCache);
+            if (previous != null)
+                resultCache = previous;
+        }
+        return resultCache == NOT_CACHEABLE ? null : resultCache;
+    }
+
+    private Object routeKeyOf(Method method, Object[] args) {
+        Integer index = routeKeyIndexes.get(method);
+        if (index == null) {
+            index = -1;
+            Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+            for (int i = 0; i < parameterAnnotations.length && index < 0; i++) {
+                for (Annotation annotation : parameterAnnotations[i]) {
+                    if (annotation instanceof RouteKey) {
+                        index = i;
+                        break;
+                    }
+                }
+            }
+            routeKeyIndexes.put(method, index);
         }
+        return index < 0 ? null : args[index];
+    }
+
+    /**
+     * Give up an async call whose deadline has passed, in the thread of the timer.
+     */
+    private void expireCall(long requestId, long timeout) {
+        WaitChainObject waitChainObject = waitChainObjects.remove(requestId);
+        if (waitChainObject == null)        // answered or cancelled meanwhile
+            return;
+
+        rpcClient.cancelRequestPacket(waitChainObject.requestPacket);
+        finishCall(waitChainObject, null);
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                waitChainObject.future.completeExceptionally(
+                        new TimeoutException("No response within " + timeout + " ms"));
+            }
+        });
     }
 
     public void notifyResponse(ResponsePacket responsePacket) {
-        Iterator<RequestPacket> iterator = waitChainObjects.keySet().iterator();
-        while (iterator.hasNext()) {
-            RequestPacket requestPacket = iterator.next();
-            if (responsePacket.isSameSignature(requestPacket)) {
-                ResponseCallbackListener responseCallbackListener =
-                        waitChainObjects.get(requestPacket).responseCallbackListener;
-
-                if (waitChainObjects.get(requestPacket).isBlocking) {
-                    // Sync parsing here
-                    waitChainObjects.replace(requestPacket,
-                            new WaitChainObject(true).setResponse(responsePacket));
-                    blockLatch.countDown();
-                } else if (responseCallbackListener != null) {
-                    responseCallbackListener.onResponse(responsePacket.result);
+        WaitChainObject waitChainObject = waitChainObjects.get(responsePacket.requestId);
+        if (waitChainObject == null)        // cancelled or unknown, just ignore it.
+            return;
+
+        // the frame only carries IDs, restore the descriptive fields from our request
+        responsePacket.copyFromRequest(waitChainObject.requestPacket);
+        resolveStatus(responsePacket);
+
+        if (waitChainObject.isBlocking) {
+            // Sync parsing here, the caller removes the entry once woken up
+            waitChainObject.wakeUp(responsePacket);
+        } else if (waitChainObject.stream != null) {
+            // failed before streaming, e.g. the method threw or the server was busy
+            if (waitChainObjects.remove(responsePacket.requestId) == null)
+                return;
+            finishCall(waitChainObject, responsePacket);
+            if (responsePacket.exception != null)
+                waitChainObject.stream.onError(responsePacket.exception);
+            else if (responsePacket.result == null)
+                waitChainObject.stream.onEnd(null);
+            else
+                waitChainObject.stream.onError(new IllegalStateException("Result not streamed by the server"));
+        } else {
+            if (waitChainObjects.remove(responsePacket.requestId) == null)
+                return;     // cancelled or timed out meanwhile
+            waitChainObject.cancelTimeout();
+            finishCall(waitChainObject, responsePacket);
+
+            // dependent stages of the future run there as well, never on the selector thread
+            getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    // hooks saw each call of a batch before, so they see each of them after
+                    if (waitChainObject.batch != null && responsePacket instanceof BatchResponsePacket)
+                        waitChainObject.batch.complete((BatchResponsePacket) responsePacket, invokerHook);
+                    else if (invokerHook != null)
+                        invokerHook.after(waitChainObject.requestPacket);
+
                     if (responsePacket.exception != null)
-                        responseCallbackListener.onException(responsePacket.exception);
-                    waitChainObjects.remove(requestPacket);
+                        waitChainObject.future.completeExceptionally(responsePacket.exception);
+                    else
+                        waitChainObject.future.complete(responsePacket.result);
                 }
-                return;
-            }
+            });
+        }
+    }
+
+    /**
+     * Turn the status of a response not carrying a result into the exception of its caller.
+     */
+    static void resolveStatus(ResponsePacket responsePacket) {
+        if (responsePacket.status == ResponsePacket.STATUS_SERVER_BUSY)
+            responsePacket.exception = new RejectedExecutionException("Server busy");
+        else if (responsePacket.status == ResponsePacket.STATUS_DEADLINE_EXCEEDED)
+            responsePacket.exception = new TimeoutException("Deadline exceeded before the server invoked it");
+    }
+
+    /**
+     * Deliver a chunk of a streamed result, in the selector thread.
+     * @param streamPacket chunk, end or failure of the stream
+     */
+    public void notifyStream(StreamPacket streamPacket) {
+        WaitChainObject waitChainObject = waitChainObjects.get(streamPacket.requestId);
+        if (waitChainObject == null || waitChainObject.stream == null)     // closed meanwhile
+            return;
+
+        if (streamPacket.type == StreamPacket.TYPE_DATA) {
+            waitChainObject.stream.onItems(streamPacket.items);
+            return;
+        }
+
+        if (waitChainObjects.remove(streamPacket.requestId) == null)
+            return;
+        finishCall(waitChainObject, new ResponsePacket()
+                .copyFromRequest(waitChainObject.requestPacket)
+                .setException(streamPacket.exception));
+        if (streamPacket.type == StreamPacket.TYPE_END)
+            waitChainObject.stream.onEnd(streamPacket.items);
+        else
+            waitChainObject.stream.onError(streamPacket.exception);
+    }
+
+    private Executor getCallbackExecutor() {
+        if (!orderedCallbacks)
+            return rpcClient.getCallbackExecutor();
+
+        synchronized (this) {
+            if (serialCallbackExecutor == null)
+                serialCallbackExecutor = new SerialExecutor(rpcClient.getCallbackExecutor());
+            return serialCallbackExecutor;
         }
     }
 
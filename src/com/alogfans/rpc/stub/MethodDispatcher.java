@@ -0,0 +1,291 @@
+package com.alogfans.rpc.stub;
+
+import com.alogfans.rpc.marshal.MethodTable;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * One entry of the server method table: a provided method resolved once at registration,
+ * so requests carrying its ID are dispatched without any lookup.
+ *
+ * For methods of up to four parameters, a class implementing one of the <code>Call</code>
+ * interfaces below is generated at registration by <code>LambdaMetafactory</code>; it calls
+ * the service method directly, with plain casts and unboxing of the arguments, so a request
+ * costs two interface calls the JIT can inline like any other. Other methods, and those of
+ * interfaces not visible from here, go through a method handle adapted to a uniform
+ * (Object, Object[]) shape, which still saves the checks of <code>Method.invoke</code>.
+ */
+public class MethodDispatcher {
+    private static final int MAX_GENERATED_ARGS = 4;
+
+    private final Provider provider;
+    private final Method method;
+    private final Class<?>[] argTypes;
+    private final String signature;
+    private final Dispatch dispatch;
+
+    // a call with its arguments spread, whatever the method
+    private interface Dispatch {
+        Object invoke(Object instance, Object[] args) throws Throwable;
+    }
+
+    // implemented by the class generated for each method
+    interface Call0 { Object call(Object instance) throws Throwable; }
+    interface Call1 { Object call(Object instance, Object arg0) throws Throwable; }
+    interface Call2 { Object call(Object instance, Object arg0, Object arg1) throws Throwable; }
+    interface Call3 { Object call(Object instance, Object arg0, Object arg1, Object arg2) throws Throwable; }
+    interface Call4 { Object call(Object instance, Object arg0, Object arg1, Object arg2, Object arg3) throws Throwable; }
+
+    // the same for methods returning void, which a lambda cannot turn into an Object
+    interface VoidCall0 { void call(Object instance) throws Throwable; }
+    interface VoidCall1 { void call(Object instance, Object arg0) throws Throwable; }
+    interface VoidCall2 { void call(Object instance, Object arg0, Object arg1) throws Throwable; }
+    interface VoidCall3 { void call(Object instance, Object arg0, Object arg1, Object arg2) throws Throwable; }
+    interface VoidCall4 { void call(Object instance, Object arg0, Object arg1, Object arg2, Object arg3) throws Throwable; }
+
+    private static final Class<?>[] CALLS = {
+            Call0.class, Call1.class, Call2.class, Call3.class, Call4.class };
+    private static final Class<?>[] VOID_CALLS = {
+            VoidCall0.class, VoidCall1.class, VoidCall2.class, VoidCall3.class, VoidCall4.class };
+
+    public MethodDispatcher(Provider provider, Method method) {
+        this.provider = provider;
+        this.method = method;
+        this.argTypes = method.getParameterTypes();
+        this.signature = MethodTable.signatureOf(provider.getInterfaceClass(), provider.getVersion(), method);
+
+        Object call = canGenerate(method) ? generateCall(method) : null;
+        this.dispatch = call != null ? prepareDispatch(call, method.getReturnType() == void.class)
+                : prepareDispatch(prepareMethodHandle(method, argTypes.length));
+    }
+
+    /**
+     * Whether the generated class may call the method: it is defined next to this class, so
+     * the types it names must be public and resolve to the same classes from here.
+     */
+    private static boolean canGenerate(Method method) {
+        if (method.getParameterCount() > MAX_GENERATED_ARGS || Modifier.isStatic(method.getModifiers()))
+            return false;
+        if (!isReachable(method.getDeclaringClass()) || !isReachable(method.getReturnType()))
+            return false;
+        for (Class<?> type : method.getParameterTypes()) {
+            if (!isReachable(type))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isReachable(Class<?> type) {
+        while (type.isArray())
+            type = type.getComponentType();
+        if (type.isPrimitive())
+            return true;
+        if (!Modifier.isPublic(type.getModifiers()))
+            return false;
+        try {
+            return Class.forName(type.getName(), false, MethodDispatcher.class.getClassLoader()) == type;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return an instance of the <code>Call</code> interface of the method, or null if it
+     * could not be generated.
+     */
+    private static Object generateCall(Method method) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        boolean isVoid = method.getReturnType() == void.class;
+
+        // erased shape of the interface, then the types the generated class casts to
+        Class<?>[] erasedTypes = new Class<?>[parameterTypes.length + 1];
+        Class<?>[] castTypes = new Class<?>[parameterTypes.length + 1];
+        erasedTypes[0] = Object.class;
+        castTypes[0] = method.getDeclaringClass();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            erasedTypes[i + 1] = Object.class;
+            castTypes[i + 1] = MethodType.methodType(parameterTypes[i]).wrap().returnType();
+        }
+        Class<?> returnType = isVoid ? void.class : Object.class;
+        Class<?> castReturnType = isVoid ? void.class : MethodType.methodType(method.getReturnType()).wrap().returnType();
+        Class<?> callClass = (isVoid ? VOID_CALLS : CALLS)[parameterTypes.length];
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            CallSite callSite = LambdaMetafactory.metafactory(lookup, "call",
+                    MethodType.methodType(callClass),
+                    MethodType.methodType(returnType, erasedTypes),
+                    lookup.unreflect(method),
+                    MethodType.methodType(castReturnType, castTypes));
+            return callSite.getTarget().invoke();
+        } catch (Throwable t) {
+            // e.g. a security manager in the way, the method handle does the job as well
+            return null;
+        }
+    }
+
+    private static Dispatch prepareDispatch(Object call, boolean isVoid) {
+        if (isVoid) {
+            if (call instanceof VoidCall0) {
+                final VoidCall0 voidCall = (VoidCall0) call;
+                return new Dispatch() {
+                    @Override
+                    public Object invoke(Object instance, Object[] args) throws Throwable {
+                        voidCall.call(instance);
+                        return null;
+                    }
+                };
+            }
+            if (call instanceof VoidCall1) {
+                final VoidCall1 voidCall = (VoidCall1) call;
+                return new Dispatch() {
+                    @Override
+                    public Object invoke(Object instance, Object[] args) throws Throwable {
+                        voidCall.call(instance, args[0]);
+                        return null;
+                    }
+                };
+            }
+            if (call instanceof VoidCall2) {
+                final VoidCall2 voidCall = (VoidCall2) call;
+                return new Dispatch() {
+                    @Override
+                    public Object invoke(Object instance, Object[] args) throws Throwable {
+                        voidCall.call(instance, args[0], args[1]);
+                        return null;
+                    }
+                };
+            }
+            if (call instanceof VoidCall3) {
+                final VoidCall3 voidCall = (VoidCall3) call;
+                return new Dispatch() {
+                    @Override
+                    public Object invoke(Object instance, Object[] args) throws Throwable {
+                        voidCall.call(instance, args[0], args[1], args[2]);
+                        return null;
+                    }
+                };
+            }
+            final VoidCall4 voidCall = (VoidCall4) call;
+            return new Dispatch() {
+                @Override
+                public Object invoke(Object instance, Object[] args) throws Throwable {
+                    voidCall.call(instance, args[0], args[1], args[2], args[3]);
+                    return null;
+                }
+            };
+        }
+
+        if (call instanceof Call0) {
+            final Call0 typedCall = (Call0) call;
+            return new Dispatch() {
+                @Override
+                public Object invoke(Object instance, Object[] args) throws Throwable {
+                    return typedCall.call(instance);
+                }
+            };
+        }
+        if (call instanceof Call1) {
+            final Call1 typedCall = (Call1) call;
+            return new Dispatch() {
+                @Override
+                public Object invoke(Object instance, Object[] args) throws Throwable {
+                    return typedCall.call(instance, args[0]);
+                }
+            };
+        }
+        if (call instanceof Call2) {
+            final Call2 typedCall = (Call2) call;
+            return new Dispatch() {
+                @Override
+                public Object invoke(Object instance, Object[] args) throws Throwable {
+                    return typedCall.call(instance, args[0], args[1]);
+                }
+            };
+        }
+        if (call instanceof Call3) {
+            final Call3 typedCall = (Call3) call;
+            return new Dispatch() {
+                @Override
+                public Object invoke(Object instance, Object[] args) throws Throwable {
+                    return typedCall.call(instance, args[0], args[1], args[2]);
+                }
+            };
+        }
+        final Call4 typedCall = (Call4) call;
+        return new Dispatch() {
+            @Override
+            public Object invoke(Object instance, Object[] args) throws Throwable {
+                return typedCall.call(instance, args[0], args[1], args[2], args[3]);
+            }
+        };
+    }
+
+    private static Dispatch prepareDispatch(final MethodHandle methodHandle) {
+        return new Dispatch() {
+            @Override
+            public Object invoke(Object instance, Object[] args) throws Throwable {
+                return (Object) methodHandle.invokeExact(instance, args);
+            }
+        };
+    }
+
+    private static MethodHandle prepareMethodHandle(Method method, int countArgs) {
+        MethodHandle methodHandle;
+        try {
+            methodHandle = MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            // interface not public, let reflection grant the access once
+            method.setAccessible(true);
+            try {
+                methodHandle = MethodHandles.lookup().unreflect(method);
+            } catch (IllegalAccessException again) {
+                throw new IllegalArgumentException("Method not accessible: " + method, again);
+            }
+        }
+
+        return methodHandle
+                .asSpreader(Object[].class, countArgs)
+                .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+    }
+
+    public Provider getProvider() {
+        return provider;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Class<?>[] getArgTypes() {
+        return argTypes;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * Invoke the method on the given service instance.
+     * @param instance object implementing the interface
+     * @param args arguments, may be null for methods without parameters
+     * @return the result, boxed if it is a primitive value
+     * @throws Exception the exception thrown by the method itself
+     */
+    public Object invoke(Object instance, Object[] args) throws Exception {
+        try {
+            return dispatch.invoke(instance, args);
+        } catch (Exception e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package com.alogfans.rpc.stub;
 
+import com.alogfans.rpc.control.ExecutionMode;
 import com.alogfans.rpc.control.RpcServer;
 import com.alogfans.rpc.hook.ProviderHook;
 import com.alogfans.rpc.marshal.RequestPacket;
 import com.alogfans.rpc.marshal.ResponsePacket;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 /**
  * Expose a given interface for invoking, as a result invokers will communicate with
@@ -19,6 +29,17 @@ public class Provider {
     private Object instance;
     private RpcServer rpcServer;
     private ProviderHook providerHook = null;
+    private ExecutionMode executionMode = null;
+
+    // bounds of concurrently running invocations, for the whole provider and per method name
+    private Semaphore concurrencyLimit = null;
+    private ConcurrentHashMap<String, Semaphore> methodConcurrencyLimits = new ConcurrentHashMap<>();
+
+    // invocations in flight of the methods whose identical concurrent calls share one
+    private ConcurrentHashMap<String, SingleFlight> singleFlights = new ConcurrentHashMap<>();
+
+    // outcome of an invocation skipped as cancelled or expired, the calls waiting for it retry
+    private static final Object SKIPPED = new Object();
 
     public Provider setInterfaceClass(Class<?> interfaceClass) {
         this.interfaceClass = interfaceClass;
@@ -40,6 +61,66 @@ public class Provider {
         return this;
     }
 
+    /**
+     * Override the execution mode of RpcServer for the methods of this provider, e.g.
+     * <code>DIRECT</code> when all of them are trivially cheap.
+     * @param executionMode mode for this provider, or null to follow the server
+     * @return the caller Provider itself.
+     */
+    public Provider setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * Limit how many invocations of this provider run at the same time, further ones wait
+     * for a slot. Mostly useful with <code>VIRTUAL_THREAD</code>, where waiting is cheap.
+     * @param maxConcurrency maximum count of running invocations
+     * @return the caller Provider itself.
+     */
+    public Provider setMaxConcurrency(int maxConcurrency) {
+        this.concurrencyLimit = new Semaphore(maxConcurrency);
+        return this;
+    }
+
+    /**
+     * Limit how many invocations of the given method (all overloads) run at the same time.
+     * @param methodName name of the method
+     * @param maxConcurrency maximum count of running invocations
+     * @return the caller Provider itself.
+     */
+    public Provider setMaxConcurrency(String methodName, int maxConcurrency) {
+        methodConcurrencyLimits.put(methodName, new Semaphore(maxConcurrency));
+        return this;
+    }
+
+    /**
+     * Let concurrent calls of the given method (all overloads) with equal arguments share
+     * one invocation, all of them receiving its result or exception. Protects an expensive
+     * backend from a burst of identical requests; only suitable for idempotent methods.
+     * Calls waiting for the shared invocation take no concurrency slot and, dispatched by
+     * RpcServer, release their worker thread: their response is sent by the thread which
+     * ends the shared invocation. Calls of a batch run in order by one worker still wait
+     * for it in that worker.
+     * Methods returning an <code>Iterator</code> or a <code>Stream</code> are never shared.
+     * @param methodName name of the method
+     * @return the caller Provider itself.
+     */
+    public Provider setSingleFlight(String methodName) {
+        singleFlights.putIfAbsent(methodName, new SingleFlight());
+        return this;
+    }
+
+    /**
+     * @return calls answered with the outcome of an identical invocation in flight.
+     */
+    public long getCountSharedCalls() {
+        long count = 0;
+        for (SingleFlight singleFlight : singleFlights.values())
+            count += singleFlight.getCountShared();
+        return count;
+    }
+
     public Provider setInstance(Object instance) {
         this.instance = instance;
         return this;
@@ -49,16 +130,45 @@ public class Provider {
         return interfaceClass;
     }
 
-    public ResponsePacket invoke(RequestPacket requestPacket) {
+    public String getVersion() {
+        return version;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Resolve every method of the provided interface once, so that requests are dispatched
+     * through the method table of RpcServer without lookup.
+     * @return one dispatcher per public method of the interface.
+     */
+    public MethodDispatcher[] prepareDispatchers() {
+        Method[] methods = interfaceClass.getMethods();
+        MethodDispatcher[] dispatchers = new MethodDispatcher[methods.length];
+        for (int i = 0; i < methods.length; i++)
+            dispatchers[i] = new MethodDispatcher(this, methods[i]);
+        return dispatchers;
+    }
+
+    /**
+     * Invoke the method in the current thread, waiting in it for an identical invocation in
+     * flight if the method is shared.
+     */
+    public ResponsePacket invoke(MethodDispatcher dispatcher, RequestPacket requestPacket) {
         ResponsePacket responsePacket = new ResponsePacket()
                 .copyFromRequest(requestPacket);
 
         if (providerHook != null) {
             providerHook.before(responsePacket);
         }
+
+        SingleFlight singleFlight = singleFlightOf(dispatcher);
         try {
-            Method method = requestPacket.getMethod();
-            responsePacket.result = method.invoke(instance, requestPacket.args);
+            if (singleFlight == null)
+                invokeLimited(dispatcher, requestPacket, responsePacket);
+            else
+                invokeShared(singleFlight, dispatcher, requestPacket, responsePacket);
         } catch (Exception e) {
             responsePacket.exception = e;
         }
@@ -68,6 +178,194 @@ public class Provider {
         return responsePacket;
     }
 
+    /**
+     * Invoke the method without holding the current thread while waiting for an identical
+     * invocation in flight. Unless shared, the method runs in the current thread at once.
+     * @param executor runs the invocation if the call has to run it after all, because the
+     *                 one it waited for was skipped
+     * @return future of the response, completed by the thread which ended the invocation
+     * waited for, or at once.
+     */
+    public CompletableFuture<ResponsePacket> invokeAsync(MethodDispatcher dispatcher, RequestPacket requestPacket,
+                                                         Executor executor) {
+        SingleFlight singleFlight = singleFlightOf(dispatcher);
+        if (singleFlight == null)
+            return CompletableFuture.completedFuture(invoke(dispatcher, requestPacket));
+
+        ResponsePacket responsePacket = new ResponsePacket()
+                .copyFromRequest(requestPacket);
+        if (providerHook != null) {
+            providerHook.before(responsePacket);
+        }
+
+        CompletableFuture<ResponsePacket> response = new CompletableFuture<>();
+        SingleFlight.Key key = new SingleFlight.Key(dispatcher.getMethod(), requestPacket.args);
+        invokeShared(singleFlight, key, dispatcher, requestPacket, responsePacket, response, executor);
+        return response;
+    }
+
+    private SingleFlight singleFlightOf(MethodDispatcher dispatcher) {
+        if (singleFlights.isEmpty() || RemoteIterator.isStreamed(dispatcher.getMethod()))
+            return null;
+        return singleFlights.get(dispatcher.getMethod().getName());
+    }
+
+    private void invokeLimited(MethodDispatcher dispatcher, RequestPacket requestPacket,
+                               ResponsePacket responsePacket) throws Exception {
+        Semaphore providerLimit = concurrencyLimit;
+        Semaphore methodLimit = methodConcurrencyLimits.isEmpty() ? null
+                : methodConcurrencyLimits.get(dispatcher.getMethod().getName());
+        acquire(providerLimit);
+        try {
+            acquire(methodLimit);
+            try {
+                // the permits may have taken a while, nobody waits for an expired call
+                if (requestPacket.isExpired()) {
+                    responsePacket.status = ResponsePacket.STATUS_DEADLINE_EXCEEDED;
+                } else if (!requestPacket.cancelled) {
+                    RpcContext previous = RpcContext.enter(requestPacket);
+                    try {
+                        responsePacket.result = dispatcher.invoke(instance, requestPacket.args);
+                    } finally {
+                        RpcContext.exit(previous);
+                    }
+                }
+            } finally {
+                release(methodLimit);
+            }
+        } finally {
+            release(providerLimit);
+        }
+    }
+
+    /**
+     * Run the invocation, or wait for an identical one in flight until the deadline of the
+     * call. If the invocation waited for was skipped or cancelled, the call shares the next
+     * one instead, possibly running it.
+     */
+    private void invokeShared(SingleFlight singleFlight, MethodDispatcher dispatcher, RequestPacket requestPacket,
+                              ResponsePacket responsePacket) throws Exception {
+        SingleFlight.Key key = new SingleFlight.Key(dispatcher.getMethod(), requestPacket.args);
+        while (true) {
+            CompletableFuture<Object> flight = new CompletableFuture<>();
+            CompletableFuture<Object> running = singleFlight.join(key, flight);
+            if (running == null) {
+                runShared(singleFlight, key, flight, dispatcher, requestPacket, responsePacket);
+                return;
+            }
+
+            Object result;
+            try {
+                if (requestPacket.deadline == 0) {
+                    result = running.get();
+                } else {
+                    long remaining = requestPacket.deadline - System.nanoTime();
+                    result = running.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+                }
+            } catch (TimeoutException e) {
+                responsePacket.status = ResponsePacket.STATUS_DEADLINE_EXCEEDED;
+                return;
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+            if (result != SKIPPED) {
+                responsePacket.result = result;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run the invocation, or chain the response onto an identical one in flight. If the
+     * invocation waited for was skipped, the call shares the next one, running it in the
+     * executor if nobody else does.
+     */
+    private void invokeShared(SingleFlight singleFlight, SingleFlight.Key key, MethodDispatcher dispatcher,
+                              RequestPacket requestPacket, ResponsePacket responsePacket,
+                              CompletableFuture<ResponsePacket> response, Executor executor) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> running = singleFlight.join(key, flight);
+        if (running == null) {
+            try {
+                runShared(singleFlight, key, flight, dispatcher, requestPacket, responsePacket);
+            } catch (Exception e) {
+                responsePacket.exception = e;
+            }
+            respond(responsePacket, response);
+            return;
+        }
+
+        running.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable throwable) {
+                if (throwable == null && result == SKIPPED && !requestPacket.cancelled && !requestPacket.isExpired()) {
+                    try {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                invokeShared(singleFlight, key, dispatcher, requestPacket, responsePacket,
+                                        response, executor);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        responsePacket.status = ResponsePacket.STATUS_SERVER_BUSY;
+                        respond(responsePacket, response);
+                    }
+                    return;
+                }
+
+                // nobody reads the response of a cancelled call, RpcServer drops it
+                if (requestPacket.isExpired() || result == SKIPPED)
+                    responsePacket.status = ResponsePacket.STATUS_DEADLINE_EXCEEDED;
+                else if (throwable != null)
+                    responsePacket.exception = throwable instanceof Exception ? (Exception) throwable
+                            : new RuntimeException(throwable);
+                else
+                    responsePacket.result = result;
+                respond(responsePacket, response);
+            }
+        });
+    }
+
+    private void respond(ResponsePacket responsePacket, CompletableFuture<ResponsePacket> response) {
+        if (providerHook != null) {
+            providerHook.after(responsePacket);
+        }
+        response.complete(responsePacket);
+    }
+
+    private void runShared(SingleFlight singleFlight, SingleFlight.Key key, CompletableFuture<Object> flight,
+                           MethodDispatcher dispatcher, RequestPacket requestPacket,
+                           ResponsePacket responsePacket) throws Exception {
+        boolean returned = false;
+        Exception exception = null;
+        try {
+            invokeLimited(dispatcher, requestPacket, responsePacket);
+            returned = true;
+        } catch (Exception e) {
+            exception = e;
+            returned = true;
+            throw e;
+        } finally {
+            // a skipped or cancelled invocation may have given up early, e.g. interrupted,
+            // which says nothing about the calls waiting for it
+            if (!returned || requestPacket.cancelled || responsePacket.status != ResponsePacket.STATUS_OK)
+                singleFlight.land(key, flight, SKIPPED, null);
+            else
+                singleFlight.land(key, flight, responsePacket.result, exception);
+        }
+    }
+
+    private static void acquire(Semaphore semaphore) throws InterruptedException {
+        if (semaphore != null)
+            semaphore.acquire();
+    }
+
+    private static void release(Semaphore semaphore) {
+        if (semaphore != null)
+            semaphore.release();
+    }
+
     public void close() {
         rpcServer.unregister(this);
     }
@@ -0,0 +1,160 @@
+package com.alogfans.rpc.stub;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streamed result of a remote method returning <code>Iterator</code> or <code>Stream</code>.
+ * Items arrive in chunks and are consumed lazily; each time half of the window has been
+ * consumed, the server is granted as many credits again, so at most one window of items
+ * is ever buffered.
+ *
+ * Not thread-safe, like any iterator. Close it to stop the stream before its end.
+ */
+public class RemoteIterator<T> implements Iterator<T>, AutoCloseable {
+    private static final Object END = new Object();
+
+    private final Invoker invoker;
+    private final RequestPacket requestPacket;
+    private final int window;
+    private final long timeout;
+
+    // chunks of items, then END or the exception, written by the selector thread
+    private final LinkedBlockingQueue<Object> chunks = new LinkedBlockingQueue<>();
+    private volatile boolean ended = false;
+
+    private Object[] chunk = null;
+    private int position = 0;
+    private int consumed = 0;
+    private boolean finished = false;
+
+    RemoteIterator(Invoker invoker, RequestPacket requestPacket, int window, long timeout) {
+        this.invoker = invoker;
+        this.requestPacket = requestPacket;
+        this.window = window;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Whether the result of the method is streamed, by the client which invokes it as well as
+     * by the server which provides it: only the return types a RemoteIterator stands for are.
+     * @param method method of the interface
+     * @return true if it returns exactly <code>Iterator</code> or <code>Stream</code>.
+     */
+    static boolean isStreamed(Method method) {
+        return method.getReturnType() == Iterator.class || method.getReturnType() == Stream.class;
+    }
+
+    void onItems(Object[] items) {
+        if (items != null && items.length > 0)
+            chunks.offer(items);
+    }
+
+    void onEnd(Object[] items) {
+        ended = true;
+        onItems(items);
+        chunks.offer(END);
+    }
+
+    void onError(Exception exception) {
+        ended = true;
+        chunks.offer(exception);
+    }
+
+    /**
+     * Wait for the next item.
+     * @throws RuntimeException wrapping the exception of the server, or a
+     * <code>TimeoutException</code> if no item arrives within the timeout of the call
+     */
+    @Override
+    public boolean hasNext() {
+        if (chunk != null && position < chunk.length)
+            return true;
+        if (finished)
+            return false;
+
+        Object next;
+        try {
+            next = chunks.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new RuntimeException(e);
+        }
+
+        if (next == null) {
+            close();
+            throw new RuntimeException("Time out", new TimeoutException("No item within " + timeout + " ms"));
+        }
+        if (next == END) {
+            finished = true;
+            chunk = null;
+            return false;
+        }
+        if (next instanceof Exception) {
+            finished = true;
+            chunk = null;
+            if (next instanceof TimeoutException)
+                throw new RuntimeException("Time out", (Exception) next);
+            if (next instanceof RuntimeException)
+                throw (RuntimeException) next;
+            throw new RuntimeException((Exception) next);
+        }
+
+        chunk = (Object[]) next;
+        position = 0;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        T item = (T) chunk[position];
+        chunk[position++] = null;
+        if (++consumed >= Math.max(window / 2, 1) && !ended) {
+            invoker.grantCredits(requestPacket, consumed);
+            consumed = 0;
+        }
+        return item;
+    }
+
+    /**
+     * Stop the stream, telling the server to drop the rest of it. Does nothing once all
+     * items have been read.
+     */
+    @Override
+    public void close() {
+        if (finished)
+            return;
+        finished = true;
+        chunk = null;
+        chunks.clear();
+        invoker.cancelCall(requestPacket.requestId);
+    }
+
+    /**
+     * @return the remaining items as a sequential stream, closing it closes this iterator.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+    }
+}
@@ -0,0 +1,69 @@
+package com.alogfans.rpc.stub;
+
+import com.alogfans.rpc.marshal.RequestPacket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of the invocation running in the current thread of the server, such as the time
+ * its caller still waits. Calls made by a provider through an Invoker inherit the
+ * remaining budget as their own timeout, so deadlines propagate down a chain of services.
+ * Long-running providers may also poll <code>isCancelled</code> to stop work nobody
+ * waits for any more.
+ */
+public class RpcContext {
+    private static final ThreadLocal<RpcContext> contextThreadLocal = new ThreadLocal<>();
+
+    private final RequestPacket requestPacket;
+    private final long deadline;
+
+    private RpcContext(RequestPacket requestPacket) {
+        this.requestPacket = requestPacket;
+        this.deadline = requestPacket.deadline;
+    }
+
+    /**
+     * @return context of the invocation running in this thread, null if there is none.
+     */
+    public static RpcContext getContext() {
+        return contextThreadLocal.get();
+    }
+
+    static RpcContext enter(RequestPacket requestPacket) {
+        RpcContext previous = contextThreadLocal.get();
+        contextThreadLocal.set(new RpcContext(requestPacket));
+        return previous;
+    }
+
+    static void exit(RpcContext previous) {
+        if (previous == null)
+            contextThreadLocal.remove();
+        else
+            contextThreadLocal.set(previous);
+    }
+
+    public boolean hasDeadline() {
+        return deadline != 0;
+    }
+
+    /**
+     * @param unit unit of the result
+     * @return time left before the caller gives up, may be negative; Long.MAX_VALUE if unbounded.
+     */
+    public long getRemainingTime(TimeUnit unit) {
+        if (deadline == 0)
+            return Long.MAX_VALUE;
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return true once the client cancelled the call or gave up waiting for it.
+     */
+    public boolean isCancelled() {
+        return requestPacket.cancelled;
+    }
+}
@@ -0,0 +1,73 @@
+package com.alogfans.rpc.stub;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Invocations in flight of the methods of one name, keyed by method and arguments. The
+ * first call of a key runs the method, identical calls arriving meanwhile wait for its
+ * outcome instead of invoking it again. The key is dropped once the invocation returns,
+ * so later calls run the method anew: nothing is cached.
+ */
+class SingleFlight {
+    private final ConcurrentHashMap<Key, CompletableFuture<Object>> flights = new ConcurrentHashMap<>();
+    private final LongAdder countShared = new LongAdder();
+
+    static final class Key {
+        private final Method method;
+        private final Object[] args;
+        private final int hashCode;
+
+        Key(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+            this.hashCode = 31 * method.hashCode() + Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key))
+                return false;
+            Key key = (Key) object;
+            return hashCode == key.hashCode && method.equals(key.method) && Arrays.deepEquals(args, key.args);
+        }
+    }
+
+    /**
+     * Join the invocation in flight of the key, or become the one running it.
+     * @param key method and arguments of the call
+     * @param flight outcome of the invocation if the caller runs it
+     * @return the invocation to wait for, or null if the caller has to run it and then call
+     * <code>land</code>.
+     */
+    CompletableFuture<Object> join(Key key, CompletableFuture<Object> flight) {
+        CompletableFuture<Object> running = flights.putIfAbsent(key, flight);
+        if (running != null)
+            countShared.increment();
+        return running;
+    }
+
+    /**
+     * End the invocation of the key, handing its outcome over to the calls waiting for it.
+     */
+    void land(Key key, CompletableFuture<Object> flight, Object result, Exception exception) {
+        // later calls start a new invocation, those which joined already get this outcome
+        flights.remove(key, flight);
+        if (exception != null)
+            flight.completeExceptionally(exception);
+        else
+            flight.complete(result);
+    }
+
+    long getCountShared() {
+        return countShared.sum();
+    }
+}
@@ -0,0 +1,160 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.async.ResponseCallbackListener;
+import com.alogfans.rpc.async.ResponseFuture;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Async API test drive on loopback: typed async views, calls by method name with
+ * arguments, listeners and many calls pipelined from one thread.
+ */
+public class AsyncTest {
+    private static final int PORT = 10090;
+    private static final int COUNT_PIPELINED = 10000;
+
+    public interface ICalc {
+        int add(int a, int b);
+        String fail(String message) throws IOException;
+    }
+
+    public interface ICalcAsync {
+        CompletableFuture<Integer> addAsync(int a, int b);
+        CompletableFuture<String> fail(String message);
+    }
+
+    public static class CalcImpl implements ICalc {
+        @Override
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        @Override
+        public String fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RpcServer rpcServer = startServer();
+        Thread.sleep(500);
+
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(ICalc.class)
+                .setVersion("1.0.0");
+
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(PORT)
+                .setTimeout(3000)
+                .register(invoker);
+        rpcClient.establishConnection();
+
+        ICalcAsync calc = invoker.getAsyncInstance(ICalcAsync.class);
+
+        System.out.println("-- async view");
+        check("addAsync(2, 3) == 5", calc.addAsync(2, 3).get() == 5);
+        check("futures compose", calc.addAsync(1, 1).thenCompose(new Function<Integer, CompletableFuture<Integer>>() {
+            @Override
+            public CompletableFuture<Integer> apply(Integer sum) {
+                return calc.addAsync(sum, 40);
+            }
+        }).get() == 42);
+        try {
+            calc.fail("boom").get();
+            check("fail() completes exceptionally", false);
+        } catch (ExecutionException e) {
+            check("fail() completes exceptionally", e.getCause() instanceof IOException
+                    && "boom".equals(e.getCause().getMessage()));
+        }
+        try {
+            invoker.getAsyncInstance(Runnable.class);
+            check("unbound view rejected", false);
+        } catch (IllegalArgumentException e) {
+            check("unbound view rejected", true);
+        }
+
+        System.out.println("-- by method name");
+        check("invokeAsync(\"add\", 40, 2) == 42", (Integer) invoker.invokeAsync("add", 40, 2).get() == 42);
+        invoker.invokeAsync("add", 20, 22);
+        check("ResponseFuture of the last call", (Integer) ResponseFuture.getResponse(3000) == 42);
+
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final AtomicReference<Object> response = new AtomicReference<>();
+        invoker.asyncInvoke("add", new ResponseCallbackListener() {
+            @Override
+            public void onResponse(Object result) {
+                response.set(result);
+                countDownLatch.countDown();
+            }
+
+            @Override
+            public void onTimeout() {
+                countDownLatch.countDown();
+            }
+
+            @Override
+            public void onException(Exception e) {
+                response.set(e);
+                countDownLatch.countDown();
+            }
+        }, 1, 2);
+        countDownLatch.await(3, TimeUnit.SECONDS);
+        check("listener got 3", Integer.valueOf(3).equals(response.get()));
+
+        System.out.println("-- pipelined");
+        long startTime = System.currentTimeMillis();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(COUNT_PIPELINED);
+        for (int i = 0; i < COUNT_PIPELINED; i++)
+            futures.add(calc.addAsync(i, i));
+        int countWrong = 0;
+        for (int i = 0; i < COUNT_PIPELINED; i++) {
+            if (futures.get(i).get(10, TimeUnit.SECONDS) != 2 * i)
+                countWrong++;
+        }
+        System.out.println(COUNT_PIPELINED + " calls in " + (System.currentTimeMillis() - startTime) + " ms");
+        check("every pipelined call answered its own arguments", countWrong == 0);
+
+        rpcClient.close();
+        rpcServer.close();
+    }
+
+    private static RpcServer startServer() {
+        Provider provider = new Provider()
+                .setInterfaceClass(ICalc.class)
+                .setInstance(new CalcImpl())
+                .setVersion("1.0.0");
+
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(PORT)
+                .setTimeout(3000)
+                .setQueueCapacity(COUNT_PIPELINED)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + PORT);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
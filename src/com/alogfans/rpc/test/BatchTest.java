@@ -0,0 +1,190 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.control.PooledConnection;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Batch;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch test drive on loopback: results come back in the order of the calls, failures
+ * stay with their own calls, sequential batches run in order, parallel ones concurrently,
+ * and a batch timing out or cancelled fails the calls not answered yet.
+ */
+public class BatchTest {
+    private static final int PORT = 10096;
+    private static final int COUNT_CALLS = 1000;
+    private static final int COUNT_SLEEPS = 8;
+
+    public interface ILookup {
+        String lookup(int id);
+        String fail(String message) throws IOException;
+        long sleep(long millis) throws InterruptedException;
+    }
+
+    public static class LookupImpl implements ILookup {
+        private final ConcurrentLinkedQueue<Integer> looked = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger countSleeps = new AtomicInteger();
+
+        @Override
+        public String lookup(int id) {
+            looked.add(id);
+            return "value" + id;
+        }
+
+        @Override
+        public String fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        @Override
+        public long sleep(long millis) throws InterruptedException {
+            countSleeps.incrementAndGet();
+            Thread.sleep(millis);
+            return millis;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LookupImpl lookupImpl = new LookupImpl();
+        RpcServer rpcServer = startServer(lookupImpl);
+        Thread.sleep(500);
+
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(ILookup.class)
+                .setVersion("1.0.0");
+
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(PORT)
+                .setTimeout(5000)
+                .register(invoker);
+        rpcClient.establishConnection();
+
+        System.out.println("-- order");
+        Batch batch = invoker.newBatch();
+        for (int i = 0; i < COUNT_CALLS; i++)
+            batch.add("lookup", i);
+        long startTime = System.currentTimeMillis();
+        List<Object> results = batch.execute();
+        System.out.println(COUNT_CALLS + " calls in one batch in " + (System.currentTimeMillis() - startTime) + " ms");
+        boolean inOrder = results.size() == COUNT_CALLS;
+        for (int i = 0; i < results.size(); i++)
+            inOrder &= ("value" + i).equals(results.get(i));
+        check("results in the order of the calls", inOrder);
+        List<Integer> looked = new ArrayList<>(lookupImpl.looked);
+        boolean ranInOrder = looked.size() == COUNT_CALLS;
+        for (int i = 0; i < looked.size(); i++)
+            ranInOrder &= looked.get(i) == i;
+        check("sequential batch ran in order", ranInOrder);
+        check("empty batch", invoker.newBatch().execute().isEmpty());
+
+        System.out.println("-- failures");
+        batch = invoker.newBatch();
+        CompletableFuture<Object> first = batch.add("lookup", 1);
+        CompletableFuture<Object> failing = batch.add("fail", "boom");
+        CompletableFuture<Object> last = batch.add("lookup", 2);
+        try {
+            batch.execute();
+            check("batch fails with its failing call", false);
+        } catch (RuntimeException e) {
+            System.out.println("execute threw " + e);
+            check("batch fails with its failing call", e.getCause() instanceof IOException);
+        }
+        check("calls around it answered", "value1".equals(first.get()) && "value2".equals(last.get()));
+        try {
+            failing.get();
+            check("failing call fails", false);
+        } catch (ExecutionException e) {
+            check("failing call fails", "boom".equals(e.getCause().getMessage()));
+        }
+        try {
+            invoker.newBatch().add("missing");
+            check("unknown method rejected", false);
+        } catch (IllegalArgumentException e) {
+            check("unknown method rejected", true);
+        }
+
+        System.out.println("-- sequential and parallel");
+        startTime = System.currentTimeMillis();
+        batch = invoker.newBatch();
+        for (int i = 0; i < COUNT_SLEEPS; i++)
+            batch.add("sleep", 50L);
+        batch.execute();
+        long sequentialTime = System.currentTimeMillis() - startTime;
+        startTime = System.currentTimeMillis();
+        batch = invoker.newBatch().setParallel(true);
+        for (int i = 0; i < COUNT_SLEEPS; i++)
+            batch.add("sleep", 50L);
+        results = batch.execute();
+        long parallelTime = System.currentTimeMillis() - startTime;
+        System.out.println(COUNT_SLEEPS + " x sleep(50): sequential " + sequentialTime + " ms, parallel " + parallelTime + " ms");
+        check("sequential batch takes its calls one after another", sequentialTime >= COUNT_SLEEPS * 50);
+        check("parallel batch overlaps its calls", parallelTime < COUNT_SLEEPS * 50 / 2);
+        check("parallel results complete", results.size() == COUNT_SLEEPS && results.get(COUNT_SLEEPS - 1).equals(50L));
+
+        System.out.println("-- timeout and cancel");
+        batch = invoker.newBatch().setTimeout(100);
+        CompletableFuture<Object> slow = batch.add("sleep", 1000L);
+        try {
+            batch.execute();
+            check("batch times out", false);
+        } catch (RuntimeException e) {
+            check("batch times out", "Time out".equals(e.getMessage()) && slow.isCompletedExceptionally());
+        }
+
+        int countSleeps = lookupImpl.countSleeps.get();
+        batch = invoker.newBatch();
+        for (int i = 0; i < COUNT_SLEEPS; i++)
+            batch.add("sleep", 100L);
+        CompletableFuture<List<Object>> sent = batch.send();
+        Thread.sleep(150);
+        sent.cancel(true);
+        Thread.sleep(1000);
+        System.out.println("sleeps run of the cancelled batch: " + (lookupImpl.countSleeps.get() - countSleeps));
+        check("cancelled batch stops on the server", lookupImpl.countSleeps.get() - countSleeps < COUNT_SLEEPS);
+        for (PooledConnection pooledConnection : rpcClient.getConnections()) {
+            System.out.println(pooledConnection);
+            check("nothing pending", pooledConnection.getPendingCalls() == 0);
+        }
+
+        rpcClient.close();
+        rpcServer.close();
+    }
+
+    private static RpcServer startServer(LookupImpl lookupImpl) {
+        Provider provider = new Provider()
+                .setInterfaceClass(ILookup.class)
+                .setInstance(lookupImpl)
+                .setVersion("1.0.0");
+
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(PORT)
+                .setTimeout(3000)
+                .setWorkerThreads(COUNT_SLEEPS)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + PORT);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
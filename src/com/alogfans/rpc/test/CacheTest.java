@@ -0,0 +1,216 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.cache.Cacheable;
+import com.alogfans.rpc.cache.ResultCache;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.hook.InvokerHook;
+import com.alogfans.rpc.marshal.RequestPacket;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result cache test drive on loopback: hits skip the server and the hooks, null results
+ * are kept and failures are not, entries expire, the size stays bounded, and an
+ * invalidation keeps a call in flight from bringing back the stale result.
+ */
+public class CacheTest {
+    private static final int PORT = 10099;
+    private static final int TTL = 300;
+    private static final int MAX_SIZE = 64;
+
+    public interface IDirectory {
+        @Cacheable(ttl = TTL, maxSize = MAX_SIZE)
+        String lookup(int key);
+
+        @Cacheable(ttl = 0, maxSize = MAX_SIZE)
+        String slowLookup(int key, long millis) throws InterruptedException;
+
+        @Cacheable(ttl = 0, maxSize = MAX_SIZE)
+        String nothing(int key);
+
+        @Cacheable(ttl = 0, maxSize = MAX_SIZE)
+        String failing(int key) throws IOException;
+
+        int count();
+    }
+
+    public static class DirectoryImpl implements IDirectory {
+        private final AtomicInteger countServed = new AtomicInteger();
+
+        @Override
+        public String lookup(int key) {
+            countServed.incrementAndGet();
+            return "value" + key;
+        }
+
+        @Override
+        public String slowLookup(int key, long millis) throws InterruptedException {
+            countServed.incrementAndGet();
+            Thread.sleep(millis);
+            return "value" + key;
+        }
+
+        @Override
+        public String nothing(int key) {
+            countServed.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public String failing(int key) throws IOException {
+            countServed.incrementAndGet();
+            throw new IOException("no value for " + key);
+        }
+
+        @Override
+        public int count() {
+            return countServed.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        DirectoryImpl directoryImpl = new DirectoryImpl();
+        RpcServer rpcServer = startServer(directoryImpl);
+        Thread.sleep(500);
+
+        final AtomicInteger countHooked = new AtomicInteger();
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(IDirectory.class)
+                .setVersion("1.0.0")
+                .setInvokerHook(new InvokerHook() {
+                    @Override
+                    public void before(RequestPacket requestPacket) {
+                        countHooked.incrementAndGet();
+                    }
+
+                    @Override
+                    public void after(RequestPacket requestPacket) {
+                    }
+                });
+
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(PORT)
+                .setTimeout(5000)
+                .register(invoker);
+        rpcClient.establishConnection();
+        IDirectory directory = (IDirectory) invoker.getInstance();
+        Method lookup = IDirectory.class.getMethod("lookup", int.class);
+        ResultCache resultCache = invoker.getResultCache(lookup);
+
+        System.out.println("-- hits");
+        for (int i = 0; i < 10; i++)
+            directory.lookup(1);
+        check("10 lookups served once", directoryImpl.countServed.get() == 1);
+        check("hits skip the hook", countHooked.get() == 1);
+        check("hits counted", resultCache.getHits() == 9 && resultCache.getMisses() == 1);
+        CompletableFuture<Object> future = invoker.invokeAsync(lookup, 1);
+        check("async hit completed at once", future.isDone() && "value1".equals(future.get()));
+        check("uncached method has no cache", invoker.getResultCache(IDirectory.class.getMethod("count")) == null);
+
+        int countServed = directoryImpl.countServed.get();
+        for (int i = 0; i < 5; i++)
+            directory.nothing(7);
+        check("null result cached", directoryImpl.countServed.get() == countServed + 1);
+        countServed = directoryImpl.countServed.get();
+        for (int i = 0; i < 3; i++) {
+            try {
+                directory.failing(7);
+            } catch (IOException e) {
+                // expected, served each time
+            }
+        }
+        check("failures not cached", directoryImpl.countServed.get() == countServed + 3);
+
+        System.out.println("-- expiry and size");
+        countServed = directoryImpl.countServed.get();
+        Thread.sleep(TTL + 50);
+        directory.lookup(1);
+        check("expired result served again", directoryImpl.countServed.get() == countServed + 1);
+        for (int i = 0; i < 4 * MAX_SIZE; i++)
+            directory.lookup(i);
+        System.out.println(resultCache);
+        check("size bounded", resultCache.size() <= MAX_SIZE && resultCache.getEvictions() > 0);
+
+        System.out.println("-- invalidation");
+        directory.lookup(1000);
+        directory.lookup(1001);
+        countServed = directoryImpl.countServed.get();
+        resultCache.invalidate(new Object[] {1000});
+        directory.lookup(1000);
+        directory.lookup(1001);
+        check("invalidated key served again, others kept", directoryImpl.countServed.get() == countServed + 1);
+        invoker.invalidateResultCaches();
+        check("all dropped", resultCache.size() == 0);
+
+        // a result in flight while its key is invalidated must not be kept
+        Method slowLookup = IDirectory.class.getMethod("slowLookup", int.class, long.class);
+        ResultCache slowCache = invoker.getResultCache(slowLookup);
+        Object[] stale = {1, 200L};
+        future = invoker.invokeAsync(slowLookup, stale);
+        Thread.sleep(50);
+        slowCache.invalidate(stale);
+        future.get();
+        countServed = directoryImpl.countServed.get();
+        directory.slowLookup(1, 200L);
+        check("result in flight during invalidation not kept", directoryImpl.countServed.get() == countServed + 1);
+
+        // keys of other segments keep theirs
+        Object[] other = otherSegment(slowCache, stale);
+        future = invoker.invokeAsync(slowLookup, other);
+        Thread.sleep(50);
+        slowCache.invalidate(stale);
+        future.get();
+        countServed = directoryImpl.countServed.get();
+        directory.slowLookup((Integer) other[0], 200L);
+        check("result in flight for another segment kept", directoryImpl.countServed.get() == countServed);
+
+        rpcClient.close();
+        rpcServer.close();
+    }
+
+    /**
+     * Find arguments whose segment is not invalidated with the given ones.
+     */
+    private static Object[] otherSegment(ResultCache resultCache, Object[] args) {
+        for (int key = 2; ; key++) {
+            Object[] other = {key, 200L};
+            long epoch = resultCache.getEpoch(other);
+            resultCache.invalidate(args);
+            if (resultCache.getEpoch(other) == epoch)
+                return other;
+        }
+    }
+
+    private static RpcServer startServer(DirectoryImpl directoryImpl) {
+        Provider provider = new Provider()
+                .setInterfaceClass(IDirectory.class)
+                .setInstance(directoryImpl)
+                .setVersion("1.0.0");
+
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(PORT)
+                .setTimeout(3000)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + PORT);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
@@ -0,0 +1,163 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.control.PooledConnection;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+import com.alogfans.rpc.stub.RpcContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cancellation test drive on loopback: calls cancelled or timed out by the client are
+ * dropped from the queue of the server, or signalled or interrupted while running.
+ */
+public class CancelTest {
+    private static final int PORT = 10092;
+    private static final int INTERRUPTING_PORT = 10093;
+    private static final int COUNT_QUEUED = 5;
+
+    public interface IWork {
+        long work(long millis) throws InterruptedException;
+        int ping();
+    }
+
+    public static class WorkImpl implements IWork {
+        private final AtomicInteger countExecuted = new AtomicInteger();
+        private final AtomicInteger countSignalled = new AtomicInteger();
+        private final AtomicInteger countInterrupted = new AtomicInteger();
+
+        @Override
+        public long work(long millis) throws InterruptedException {
+            countExecuted.incrementAndGet();
+            long endTime = System.currentTimeMillis() + millis;
+            try {
+                while (System.currentTimeMillis() < endTime) {
+                    if (RpcContext.getContext().isCancelled()) {
+                        countSignalled.incrementAndGet();
+                        return -1;
+                    }
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                countInterrupted.incrementAndGet();
+                throw e;
+            }
+            return millis;
+        }
+
+        @Override
+        public int ping() {
+            return 1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        WorkImpl workImpl = new WorkImpl();
+        WorkImpl interruptedWorkImpl = new WorkImpl();
+        RpcServer rpcServer = startServer(PORT, workImpl, false);
+        RpcServer interruptingRpcServer = startServer(INTERRUPTING_PORT, interruptedWorkImpl, true);
+        Thread.sleep(500);
+
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(IWork.class)
+                .setVersion("1.0.0");
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(PORT)
+                .setTimeout(10000)
+                .register(invoker);
+        rpcClient.establishConnection();
+        IWork work = (IWork) invoker.getInstance();
+
+        System.out.println("-- cancel running and queued calls");
+        CompletableFuture<Object> running = invoker.invokeAsync("work", 3000L);
+        List<CompletableFuture<Object>> queued = new ArrayList<>();
+        for (int i = 0; i < COUNT_QUEUED; i++)
+            queued.add(invoker.invokeAsync("work", 3000L));
+        Thread.sleep(200);
+
+        long startTime = System.currentTimeMillis();
+        running.cancel(true);
+        invoker.cancelInvoke("work");
+        work.ping();
+        long elapsed = System.currentTimeMillis() - startTime;
+        System.out.println("next call answered " + elapsed + " ms after cancel");
+        check("worker freed at once", elapsed < 1000);
+        check("running call signalled", workImpl.countSignalled.get() == 1);
+        check("queued calls never executed", workImpl.countExecuted.get() == 1);
+        check("running future cancelled", running.isCancelled());
+        boolean allCancelled = true;
+        for (CompletableFuture<Object> future : queued)
+            allCancelled &= future.isCancelled();
+        check("queued futures cancelled", allCancelled);
+
+        System.out.println("-- timeout cancels too");
+        invoker.invokeAsync(100, IWork.class.getMethod("work", long.class), 3000L);
+        Thread.sleep(400);
+        startTime = System.currentTimeMillis();
+        work.ping();
+        check("worker freed after timeout", System.currentTimeMillis() - startTime < 1000);
+        check("timed out call signalled", workImpl.countSignalled.get() == 2);
+        for (PooledConnection pooledConnection : rpcClient.getConnections()) {
+            System.out.println(pooledConnection);
+            check("nothing pending", pooledConnection.getPendingCalls() == 0);
+        }
+        rpcClient.close();
+
+        System.out.println("-- interrupt on cancel");
+        Invoker interruptedInvoker = new Invoker()
+                .setInterfaceClass(IWork.class)
+                .setVersion("1.0.0");
+        RpcClient interruptedRpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(INTERRUPTING_PORT)
+                .setTimeout(10000)
+                .register(interruptedInvoker);
+        interruptedRpcClient.establishConnection();
+
+        running = interruptedInvoker.invokeAsync("work", 3000L);
+        Thread.sleep(200);
+        running.cancel(true);
+        ((IWork) interruptedInvoker.getInstance()).ping();
+        Thread.sleep(100);
+        check("running call interrupted", interruptedWorkImpl.countInterrupted.get() == 1);
+
+        interruptedRpcClient.close();
+        rpcServer.close();
+        interruptingRpcServer.close();
+    }
+
+    private static RpcServer startServer(int port, WorkImpl workImpl, boolean interruptOnCancel) {
+        Provider provider = new Provider()
+                .setInterfaceClass(IWork.class)
+                .setInstance(workImpl)
+                .setVersion("1.0.0");
+
+        // one worker, so that a call left running would hold up the next ones
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(port)
+                .setTimeout(3000)
+                .setWorkerThreads(1)
+                .setInterruptOnCancel(interruptOnCancel)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
@@ -0,0 +1,135 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.control.FrameCompressor;
+import com.alogfans.rpc.control.PooledConnection;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compression test drive on loopback: large frames are compressed only when both ends
+ * enable it, small ones never are, and every payload survives the round trip whether it
+ * compresses well or not at all.
+ */
+public class CompressionTest {
+    private static final int COMPRESSING_PORT = 10097;
+    private static final int PLAIN_PORT = 10098;
+    private static final int THRESHOLD = 1024;
+
+    public interface IEcho {
+        String echo(String text);
+        byte[] echoBytes(byte[] bytes);
+    }
+
+    public static class EchoImpl implements IEcho {
+        @Override
+        public String echo(String text) {
+            return text;
+        }
+
+        @Override
+        public byte[] echoBytes(byte[] bytes) {
+            return bytes;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RpcServer compressingRpcServer = startServer(COMPRESSING_PORT, THRESHOLD);
+        RpcServer plainRpcServer = startServer(PLAIN_PORT, 0);
+        Thread.sleep(500);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            builder.append("payload ").append(i % 100).append(' ');
+        String text = builder.toString();
+        byte[] noise = new byte[50000];
+        new Random(1).nextBytes(noise);
+
+        System.out.println("-- both ends compress");
+        Invoker invoker = newInvoker();
+        RpcClient rpcClient = connect(invoker, COMPRESSING_PORT, THRESHOLD);
+        IEcho echo = (IEcho) invoker.getInstance();
+        FrameCompressor frameCompressor = compressorOf(rpcClient);
+        check("compression agreed", frameCompressor != null);
+        for (int i = 0; i < 100; i++)
+            echo.echo("small " + i);
+        check("small frames sent as they are", frameCompressor.getCountCompressed() == 0);
+        check("text round trip", text.equals(echo.echo(text)));
+        System.out.println("compressed frames " + frameCompressor.getCountCompressed()
+                + ", bytes saved " + frameCompressor.getBytesSaved());
+        check("large frame compressed", frameCompressor.getCountCompressed() > 0
+                && frameCompressor.getBytesSaved() > text.length() / 2);
+        check("incompressible round trip", Arrays.equals(noise, echo.echoBytes(noise)));
+        rpcClient.close();
+
+        System.out.println("-- only the server compresses");
+        invoker = newInvoker();
+        rpcClient = connect(invoker, COMPRESSING_PORT, 0);
+        check("compression not agreed", compressorOf(rpcClient) == null);
+        check("text round trip", text.equals(((IEcho) invoker.getInstance()).echo(text)));
+        rpcClient.close();
+
+        System.out.println("-- only the client compresses");
+        invoker = newInvoker();
+        rpcClient = connect(invoker, PLAIN_PORT, THRESHOLD);
+        check("compression not agreed", compressorOf(rpcClient) == null);
+        check("text round trip", text.equals(((IEcho) invoker.getInstance()).echo(text)));
+        rpcClient.close();
+
+        compressingRpcServer.close();
+        plainRpcServer.close();
+    }
+
+    private static Invoker newInvoker() {
+        return new Invoker()
+                .setInterfaceClass(IEcho.class)
+                .setVersion("1.0.0");
+    }
+
+    private static RpcClient connect(Invoker invoker, int port, int compressionThreshold) {
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(port)
+                .setTimeout(5000)
+                .setCompressionThreshold(compressionThreshold)
+                .register(invoker);
+        rpcClient.establishConnection();
+        return rpcClient;
+    }
+
+    private static FrameCompressor compressorOf(RpcClient rpcClient) {
+        PooledConnection pooledConnection = rpcClient.getConnections().get(0);
+        return pooledConnection.getConnection().getCompressor();
+    }
+
+    private static RpcServer startServer(int port, int compressionThreshold) {
+        Provider provider = new Provider()
+                .setInterfaceClass(IEcho.class)
+                .setInstance(new EchoImpl())
+                .setVersion("1.0.0");
+
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(port)
+                .setTimeout(3000)
+                .setCompressionThreshold(compressionThreshold)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
@@ -0,0 +1,174 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.async.ResponseCallbackListener;
+import com.alogfans.rpc.control.PooledConnection;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.hook.ProviderHook;
+import com.alogfans.rpc.marshal.ResponsePacket;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deadline test drive on loopback: timed out calls fail in time and are forgotten, and
+ * requests waiting past their deadline are answered by the server with the deadline
+ * exceeded status instead of being invoked.
+ */
+public class DeadlineTest {
+    private static final int PORT = 10091;
+    private static final int COUNT_LISTENERS = 20;
+
+    public interface ISleep {
+        long sleep(long millis) throws InterruptedException;
+        int touch();
+    }
+
+    public static class SleepImpl implements ISleep {
+        private final AtomicInteger countTouches = new AtomicInteger();
+
+        @Override
+        public long sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+            return millis;
+        }
+
+        @Override
+        public int touch() {
+            return countTouches.incrementAndGet();
+        }
+
+        public int getCountTouches() {
+            return countTouches.get();
+        }
+    }
+
+    // responses the server answered with the deadline exceeded status
+    private static final AtomicInteger countExceeded = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        SleepImpl sleepImpl = new SleepImpl();
+        RpcServer rpcServer = startServer(sleepImpl);
+        Thread.sleep(500);
+
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(ISleep.class)
+                .setVersion("1.0.0");
+
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(PORT)
+                .setTimeout(3000)
+                .register(invoker);
+        rpcClient.establishConnection();
+
+        System.out.println("-- future of a late call");
+        long startTime = System.currentTimeMillis();
+        try {
+            invoker.invokeAsync(100, ISleep.class.getMethod("sleep", long.class), 500L).get();
+            check("late call times out", false);
+        } catch (ExecutionException e) {
+            long elapsed = System.currentTimeMillis() - startTime;
+            System.out.println("failed after " + elapsed + " ms: " + e.getCause());
+            check("late call times out", e.getCause() instanceof TimeoutException);
+            check("timed out before the response", elapsed < 400);
+        }
+
+        System.out.println("-- listeners of late calls");
+        invoker.setTimeout(50);
+        final CountDownLatch countDownLatch = new CountDownLatch(COUNT_LISTENERS);
+        final AtomicInteger countOthers = new AtomicInteger();
+        for (int i = 0; i < COUNT_LISTENERS; i++) {
+            invoker.asyncInvoke("sleep", new ResponseCallbackListener() {
+                @Override
+                public void onResponse(Object response) {
+                    countOthers.incrementAndGet();
+                }
+
+                @Override
+                public void onTimeout() {
+                    countDownLatch.countDown();
+                }
+
+                @Override
+                public void onException(Exception e) {
+                    countOthers.incrementAndGet();
+                }
+            }, 200L);
+        }
+        check("onTimeout called for each call", countDownLatch.await(3, TimeUnit.SECONDS));
+        // the responses still arrive, nobody waits for them any more
+        Thread.sleep(1000);
+        check("late responses ignored", countOthers.get() == 0);
+        for (PooledConnection pooledConnection : rpcClient.getConnections()) {
+            System.out.println(pooledConnection);
+            check("nothing pending", pooledConnection.getPendingCalls() == 0);
+        }
+
+        System.out.println("-- waiting past the deadline");
+        invoker.setTimeout(0);
+        countExceeded.set(0);
+        // the only permit of the provider is taken, the touch waits for it longer than its budget
+        CompletableFuture<Object> busy = invoker.invokeAsync(ISleep.class.getMethod("sleep", long.class), 500L);
+        Thread.sleep(50);
+        try {
+            invoker.invokeAsync(100, ISleep.class.getMethod("touch")).get();
+            check("queued call times out", false);
+        } catch (ExecutionException e) {
+            check("queued call times out", e.getCause() instanceof TimeoutException);
+        }
+        busy.get();
+        Thread.sleep(100);
+check("server answered deadline exceeded", countExceeded.get() == 1);
+        check("expired call never invoked", sleepImpl.getCountTouches() == 0);
+        check("fresh call invoked", (Integer) invoker.invokeAsync("touch").get() == 1);
+
+        rpcClient.close();
+        rpcServer.close();
+    }
+
+    private static RpcServer startServer(SleepImpl sleepImpl) {
+        Provider provider = new Provider()
+                .setInterfaceClass(ISleep.class)
+                .setInstance(sleepImpl)
+                .setVersion("1.0.0")
+                .setMaxConcurrency(1)
+                .setProviderHook(new ProviderHook() {
+                    @Override
+                    public void before(ResponsePacket responsePacket) {
+                    }
+
+                    @Override
+                    public void after(ResponsePacket responsePacket) {
+                        if (responsePacket.status == ResponsePacket.STATUS_DEADLINE_EXCEEDED)
+                            countExceeded.incrementAndGet();
+                    }
+                });
+
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(PORT)
+                .setTimeout(3000)
+                .setWorkerThreads(4)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + PORT);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
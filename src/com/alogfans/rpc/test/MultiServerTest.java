@@ -0,0 +1,133 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.balance.Endpoint;
+import com.alogfans.rpc.control.PooledConnection;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+/**
+ * Load balancing test drive: one client spreading calls over several servers on
+ * loopback, while one of them is stopped and restarted.
+ */
+public class MultiServerTest {
+    private static final int BASE_PORT = 10087;
+    private static final int COUNT_SERVERS = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        RpcServer[] rpcServers = new RpcServer[COUNT_SERVERS];
+        for (int i = 0; i < COUNT_SERVERS; i++)
+            rpcServers[i] = startServer(BASE_PORT + i);
+        Thread.sleep(500);
+
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(ISayHello.class)
+                .setVersion("1.0.0");
+
+        RpcClient rpcClient = new RpcClient()
+                .setTimeout(3000)
+                .setPoolSize(2)
+                .setEjection(3, 1000)
+                .setReconnectBackoff(100, 1000)
+                .register(invoker);
+        for (int i = 0; i < COUNT_SERVERS; i++)
+            rpcClient.addEndpoint("127.0.0.1", BASE_PORT + i);
+        rpcClient.establishConnection();
+
+        ISayHello sayHello = (ISayHello) invoker.getInstance();
+
+        System.out.println("-- all servers up");
+        long[] countCalls = countCalls(rpcClient);
+        callMany(sayHello, 3000);
+        report(rpcClient);
+        checkServed(rpcClient, countCalls);
+
+        System.out.println("-- server #1 stopped");
+        rpcServers[1].close();
+        Thread.sleep(200);
+        System.out.println("failed calls: " + callMany(sayHello, 3000));
+        report(rpcClient);
+
+        System.out.println("-- server #1 restarted");
+        long callsBefore = rpcClient.getEndpoints().get(1).getCountCalls();
+        rpcServers[1] = startServer(BASE_PORT + 1);
+        Thread.sleep(2000);
+        System.out.println("failed calls: " + callMany(sayHello, 3000));
+        report(rpcClient);
+        long callsAfter = rpcClient.getEndpoints().get(1).getCountCalls();
+        System.out.println(callsAfter > callsBefore
+                ? "server #1 rejoined the rotation"
+                : "server #1 did NOT rejoin the rotation");
+
+        // a slow answer fades from the latency average, no server is avoided for good
+        System.out.println("-- all servers up again");
+        countCalls = countCalls(rpcClient);
+        callMany(sayHello, 3000);
+        report(rpcClient);
+        checkServed(rpcClient, countCalls);
+
+        rpcClient.close();
+        for (RpcServer rpcServer : rpcServers)
+            rpcServer.close();
+    }
+
+    private static RpcServer startServer(int port) {
+        Provider provider = new Provider()
+                .setInterfaceClass(ISayHello.class)
+                .setInstance(new SayHelloImpl())
+                .setVersion("1.0.0");
+
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(port)
+                .setTimeout(3000)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + port);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static int callMany(ISayHello sayHello, int countCalls) {
+        int countFailed = 0;
+        for (int i = 0; i < countCalls; i++) {
+            try {
+                sayHello.sayHello();
+            } catch (RuntimeException e) {
+                countFailed++;
+            }
+        }
+        return countFailed;
+    }
+
+    private static long[] countCalls(RpcClient rpcClient) {
+        long[] countCalls = new long[COUNT_SERVERS];
+        for (int i = 0; i < COUNT_SERVERS; i++)
+            countCalls[i] = rpcClient.getEndpoints().get(i).getCountCalls();
+        return countCalls;
+    }
+
+    private static void checkServed(RpcClient rpcClient, long[] countCallsBefore) {
+        long[] countCalls = countCalls(rpcClient);
+        for (int i = 0; i < COUNT_SERVERS; i++) {
+            if (countCalls[i] == countCallsBefore[i]) {
+                System.out.println("server #" + i + " got NO calls");
+                return;
+            }
+        }
+        System.out.println("every server got calls");
+    }
+
+    private static void report(RpcClient rpcClient) {
+        for (Endpoint endpoint : rpcClient.getEndpoints())
+            System.out.println(endpoint);
+        for (PooledConnection pooledConnection : rpcClient.getConnections())
+            System.out.println("  " + pooledConnection);
+    }
+}
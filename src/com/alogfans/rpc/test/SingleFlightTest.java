@@ -0,0 +1,172 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-flight test drive on loopback: identical concurrent calls from several clients
+ * share one invocation and its result or failure, other arguments and other methods are
+ * invoked on their own, and calls waiting for the shared invocation hold no worker.
+ */
+public class SingleFlightTest {
+    private static final int PORT = 10100;
+    private static final int COUNT_CLIENTS = 4;
+    private static final int COUNT_CALLS = 8;
+
+    public interface IBackend {
+        String load(String key) throws Exception;
+        String plain(String key) throws InterruptedException;
+        int ping();
+    }
+
+    public static class BackendImpl implements IBackend {
+        private final AtomicInteger countLoads = new AtomicInteger();
+        private final AtomicInteger countPlains = new AtomicInteger();
+
+        @Override
+        public String load(String key) throws Exception {
+            countLoads.incrementAndGet();
+            Thread.sleep(200);
+            if (key.equals("bad"))
+                throw new IOException("backend down");
+            return "value of " + key;
+        }
+
+        @Override
+        public String plain(String key) throws InterruptedException {
+            countPlains.incrementAndGet();
+            Thread.sleep(200);
+            return key;
+        }
+
+        @Override
+        public int ping() {
+            return 1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BackendImpl backendImpl = new BackendImpl();
+        Provider provider = new Provider()
+                .setInterfaceClass(IBackend.class)
+                .setInstance(backendImpl)
+                .setVersion("1.0.0")
+                .setSingleFlight("load");
+        RpcServer rpcServer = startServer(provider);
+        Thread.sleep(500);
+
+        List<RpcClient> rpcClients = new ArrayList<>();
+        List<Invoker> invokers = new ArrayList<>();
+        for (int i = 0; i < COUNT_CLIENTS; i++) {
+            Invoker invoker = new Invoker()
+                    .setInterfaceClass(IBackend.class)
+                    .setVersion("1.0.0");
+            RpcClient rpcClient = new RpcClient()
+                    .setHostname("127.0.0.1")
+                    .setPort(PORT)
+                    .setTimeout(5000)
+                    .register(invoker);
+            rpcClient.establishConnection();
+            rpcClients.add(rpcClient);
+            invokers.add(invoker);
+        }
+
+        System.out.println("-- identical calls");
+        for (int round = 0; round < 3; round++) {
+            backendImpl.countLoads.set(0);
+            long countShared = provider.getCountSharedCalls();
+            List<CompletableFuture<Object>> futures = callAll(invokers, "load", "k");
+            boolean sameResult = true;
+            for (CompletableFuture<Object> future : futures)
+                sameResult &= "value of k".equals(future.get());
+            countShared = provider.getCountSharedCalls() - countShared;
+            System.out.println(COUNT_CALLS + " identical calls: loads=" + backendImpl.countLoads.get() + ", shared=" + countShared);
+            check("one invocation for all", backendImpl.countLoads.get() == 1 && countShared == COUNT_CALLS - 1);
+            check("every caller got its result", sameResult);
+        }
+
+        System.out.println("-- failure shared");
+        backendImpl.countLoads.set(0);
+        int countFailed = 0;
+        for (CompletableFuture<Object> future : callAll(invokers, "load", "bad")) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    countFailed++;
+            }
+        }
+        check("one invocation, every caller failed", backendImpl.countLoads.get() == 1 && countFailed == COUNT_CALLS);
+
+        System.out.println("-- not shared");
+        backendImpl.countLoads.set(0);
+        List<CompletableFuture<Object>> futures = callAll(invokers, "load", "a");
+        futures.addAll(callAll(invokers, "load", "b"));
+        for (CompletableFuture<Object> future : futures)
+            future.get();
+        check("one invocation per argument", backendImpl.countLoads.get() == 2);
+        for (CompletableFuture<Object> future : callAll(invokers, "plain", "k"))
+            future.get();
+        check("other methods invoked for each call", backendImpl.countPlains.get() == COUNT_CALLS);
+        backendImpl.countLoads.set(0);
+        invokers.get(0).invokeAsync("load", "k").get();
+        check("landed invocation not reused", backendImpl.countLoads.get() == 1);
+
+        System.out.println("-- waiters hold no worker");
+        futures = callAll(invokers, "load", "k");
+        Thread.sleep(50);
+        long startTime = System.currentTimeMillis();
+        invokers.get(0).invokeAsync("ping").get();
+        long elapsed = System.currentTimeMillis() - startTime;
+        System.out.println("ping answered in " + elapsed + " ms during the shared invocation");
+        check("workers free while waiting", elapsed < 150);
+        for (CompletableFuture<Object> future : futures)
+            future.get();
+
+        for (RpcClient rpcClient : rpcClients)
+            rpcClient.close();
+        rpcServer.close();
+    }
+
+    /**
+     * Send the same call from all clients at once, spread evenly.
+     */
+    private static List<CompletableFuture<Object>> callAll(List<Invoker> invokers, String methodName, Object... args) {
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < COUNT_CALLS; i++)
+            futures.add(invokers.get(i % invokers.size()).invokeAsync(methodName, args));
+        return futures;
+    }
+
+    private static RpcServer startServer(Provider provider) {
+        // fewer workers than identical calls, waiting ones must not hold them
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(PORT)
+                .setTimeout(3000)
+                .setWorkerThreads(COUNT_CALLS / 2)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + PORT);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
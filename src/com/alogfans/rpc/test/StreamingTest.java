@@ -0,0 +1,208 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.control.PooledConnection;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Streaming test drive on loopback: streamed results arrive whole and in order, failures
+ * reach the consumer, the server never produces more than the credits granted, and closing
+ * a stream early stops the production.
+ */
+public class StreamingTest {
+    private static final int PORT = 10095;
+    private static final int STREAM_WINDOW = 100;
+    private static final int COUNT_ITEMS = 100000;
+
+    public interface INumbers {
+        Iterator<Integer> range(int count);
+        Stream<String> lines(int count);
+        Iterator<Integer> failing(int count);
+        Iterator<Long> infinite();
+    }
+
+    public static class NumbersImpl implements INumbers {
+        private final AtomicLong countProduced = new AtomicLong();
+        private final AtomicBoolean linesClosed = new AtomicBoolean();
+
+        @Override
+        public Iterator<Integer> range(final int count) {
+            return new Iterator<Integer>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < count;
+                }
+
+                @Override
+                public Integer next() {
+                    return next++;
+                }
+            };
+        }
+
+        @Override
+        public Stream<String> lines(int count) {
+            List<String> lines = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                lines.add("line" + i);
+            return lines.stream().onClose(new Runnable() {
+                @Override
+                public void run() {
+                    linesClosed.set(true);
+                }
+            });
+        }
+
+        @Override
+        public Iterator<Integer> failing(final int count) {
+            final Iterator<Integer> range = range(count);
+            return new Iterator<Integer>() {
+                @Override
+                public boolean hasNext() {
+                    return true;
+                }
+
+                @Override
+                public Integer next() {
+                    if (!range.hasNext())
+                        throw new IllegalStateException("broken after " + count);
+                    return range.next();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<Long> infinite() {
+            return new Iterator<Long>() {
+                @Override
+                public boolean hasNext() {
+                    return true;
+                }
+
+                @Override
+                public Long next() {
+                    return countProduced.getAndIncrement();
+                }
+            };
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        NumbersImpl numbersImpl = new NumbersImpl();
+        RpcServer rpcServer = startServer(numbersImpl);
+        Thread.sleep(500);
+
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(INumbers.class)
+                .setVersion("1.0.0")
+                .setStreamWindow(STREAM_WINDOW);
+
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(PORT)
+                .setTimeout(5000)
+                .register(invoker);
+        rpcClient.establishConnection();
+        INumbers numbers = (INumbers) invoker.getInstance();
+
+        System.out.println("-- whole results");
+        long startTime = System.currentTimeMillis();
+        Iterator<Integer> range = numbers.range(COUNT_ITEMS);
+        int expected = 0;
+        boolean inOrder = true;
+        while (range.hasNext())
+            inOrder &= range.next() == expected++;
+        System.out.println(COUNT_ITEMS + " items in " + (System.currentTimeMillis() - startTime) + " ms");
+        check("every item in order", inOrder && expected == COUNT_ITEMS);
+        check("empty stream", !numbers.range(0).hasNext());
+
+        long countLines;
+        try (Stream<String> lines = numbers.lines(1000)) {
+            countLines = lines.count();
+        }
+        check("stream of 1000 lines", countLines == 1000);
+        Thread.sleep(100);
+        check("server stream closed", numbersImpl.linesClosed.get());
+
+        System.out.println("-- failure in the middle");
+        Iterator<Integer> failing = numbers.failing(250);
+        int countReceived = 0;
+        try {
+            while (failing.hasNext()) {
+                failing.next();
+                countReceived++;
+            }
+            check("failure reaches the consumer", false);
+        } catch (RuntimeException e) {
+            System.out.println("after " + countReceived + " items: " + e);
+            check("failure reaches the consumer after the items", countReceived == 250);
+        }
+
+        System.out.println("-- credits");
+        Iterator<Long> infinite = numbers.infinite();
+        for (int i = 0; i < 30; i++)
+            infinite.next();
+        Thread.sleep(300);
+        long countProduced = numbersImpl.countProduced.get();
+        System.out.println("consumed 30, produced " + countProduced + ", window " + STREAM_WINDOW);
+        check("production bounded by the window", countProduced <= 30 + STREAM_WINDOW);
+        for (int i = 0; i < 1000; i++)
+            infinite.next();
+        Thread.sleep(300);
+        countProduced = numbersImpl.countProduced.get();
+        System.out.println("consumed 1030, produced " + countProduced);
+        check("production follows the consumer", countProduced >= 1030 && countProduced <= 1030 + STREAM_WINDOW);
+
+        System.out.println("-- early close");
+        ((AutoCloseable) infinite).close();
+        Thread.sleep(300);
+        countProduced = numbersImpl.countProduced.get();
+        Thread.sleep(300);
+        check("production stopped", numbersImpl.countProduced.get() == countProduced);
+        for (PooledConnection pooledConnection : rpcClient.getConnections()) {
+            System.out.println(pooledConnection);
+            check("nothing pending", pooledConnection.getPendingCalls() == 0);
+        }
+        check("next call still answered", numbers.range(3).hasNext());
+
+        rpcClient.close();
+        rpcServer.close();
+    }
+
+    private static RpcServer startServer(NumbersImpl numbersImpl) {
+        Provider provider = new Provider()
+                .setInterfaceClass(INumbers.class)
+                .setInstance(numbersImpl)
+                .setVersion("1.0.0");
+
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(PORT)
+                .setTimeout(3000)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + PORT);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}
@@ -0,0 +1,188 @@
+package com.alogfans.rpc.test;
+
+import com.alogfans.rpc.control.OverflowPolicy;
+import com.alogfans.rpc.control.RpcClient;
+import com.alogfans.rpc.control.RpcServer;
+import com.alogfans.rpc.stub.Invoker;
+import com.alogfans.rpc.stub.Provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-flight window test drive on loopback: the calls reaching the server stay within the
+ * bounds of the invoker and the connections, and calls beyond them are handled as the
+ * overflow policy says, in the order they were made.
+ */
+public class WindowTest {
+    private static final int PORT = 10094;
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final int COUNT_CALLS = 12;
+
+    public interface ISlow {
+        int slow(int id, long millis) throws InterruptedException;
+    }
+
+    public static class SlowImpl implements ISlow {
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private final ConcurrentLinkedQueue<Integer> started = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public int slow(int id, long millis) throws InterruptedException {
+            started.add(id);
+            int nowRunning = running.incrementAndGet();
+            int max;
+            while (nowRunning > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, nowRunning))
+                ;
+            try {
+                Thread.sleep(millis);
+            } finally {
+                running.decrementAndGet();
+            }
+            return id;
+        }
+
+        void reset() {
+            maxRunning.set(0);
+            started.clear();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SlowImpl slowImpl = new SlowImpl();
+        RpcServer rpcServer = startServer(slowImpl);
+        Thread.sleep(500);
+
+        for (OverflowPolicy overflowPolicy : OverflowPolicy.values()) {
+            System.out.println("-- " + overflowPolicy + ", " + MAX_IN_FLIGHT + " calls in flight per invoker");
+            slowImpl.reset();
+            Invoker invoker = new Invoker()
+                    .setInterfaceClass(ISlow.class)
+                    .setVersion("1.0.0")
+                    .setMaxInFlight(MAX_IN_FLIGHT);
+            RpcClient rpcClient = connect(invoker, overflowPolicy, 0);
+
+            long startTime = System.currentTimeMillis();
+            List<CompletableFuture<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < COUNT_CALLS; i++)
+                futures.add(invoker.invokeAsync("slow", i, 100L));
+            long submitTime = System.currentTimeMillis() - startTime;
+
+            int countAnswered = 0;
+            int countRejected = 0;
+            for (CompletableFuture<Object> future : futures) {
+                try {
+                    future.get();
+                    countAnswered++;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RejectedExecutionException)
+                        countRejected++;
+                }
+            }
+            System.out.println("submitted in " + submitTime + " ms, answered=" + countAnswered
+                    + ", rejected=" + countRejected + ", max running=" + slowImpl.maxRunning.get());
+            check("async callers never blocked", submitTime < 100);
+            check("server never saw more than the window", slowImpl.maxRunning.get() <= MAX_IN_FLIGHT);
+            // as many calls as credits may be delayed, asynchronous callers are never blocked
+            int countAccepted = overflowPolicy == OverflowPolicy.FAIL_FAST ? MAX_IN_FLIGHT : 2 * MAX_IN_FLIGHT;
+            check("calls beyond the window rejected", countAnswered == countAccepted
+                    && countRejected == COUNT_CALLS - countAccepted);
+            check("credits given back", invoker.getWindow().getInFlight() == 0);
+            rpcClient.close();
+        }
+
+        System.out.println("-- BLOCK, " + MAX_IN_FLIGHT + " synchronous callers per connection");
+        slowImpl.reset();
+        Invoker invoker = new Invoker()
+                .setInterfaceClass(ISlow.class)
+                .setVersion("1.0.0");
+        RpcClient rpcClient = connect(invoker, OverflowPolicy.BLOCK, MAX_IN_FLIGHT);
+        final ISlow slow = (ISlow) invoker.getInstance();
+        final AtomicInteger countAnswered = new AtomicInteger();
+        Thread[] threads = new Thread[COUNT_CALLS];
+        for (int i = 0; i < COUNT_CALLS; i++) {
+            final int id = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (slow.slow(id, 100) == id)
+                            countAnswered.incrementAndGet();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        check("every blocked caller answered", countAnswered.get() == COUNT_CALLS);
+        check("server never saw more than the window", slowImpl.maxRunning.get() <= MAX_IN_FLIGHT);
+        rpcClient.close();
+
+        System.out.println("-- DELAY, callers queue in order");
+        slowImpl.reset();
+        invoker = new Invoker()
+                .setInterfaceClass(ISlow.class)
+                .setVersion("1.0.0")
+                .setMaxInFlight(1);
+        rpcClient = connect(invoker, OverflowPolicy.DELAY, 0);
+        CompletableFuture<Object> first = invoker.invokeAsync("slow", 0, 200L);
+        invoker.invokeAsync("slow", 1, 0L);
+        // a synchronous caller arriving later waits behind the delayed call
+        ((ISlow) invoker.getInstance()).slow(2, 0);
+        first.get();
+        System.out.println("started " + slowImpl.started);
+        check("calls started in order", new ArrayList<>(slowImpl.started).toString().equals("[0, 1, 2]"));
+        rpcClient.close();
+
+        rpcServer.close();
+    }
+
+    private static RpcClient connect(Invoker invoker, OverflowPolicy overflowPolicy, int maxInFlightPerConnection) {
+        RpcClient rpcClient = new RpcClient()
+                .setHostname("127.0.0.1")
+                .setPort(PORT)
+                .setTimeout(5000)
+                .setMaxInFlightPerConnection(maxInFlightPerConnection)
+                .setOverflowPolicy(overflowPolicy)
+                .register(invoker);
+        rpcClient.establishConnection();
+        return rpcClient;
+    }
+
+    private static RpcServer startServer(SlowImpl slowImpl) {
+        Provider provider = new Provider()
+                .setInterfaceClass(ISlow.class)
+                .setInstance(slowImpl)
+                .setVersion("1.0.0");
+
+        // more workers than calls, only the client bounds what runs at once
+        final RpcServer rpcServer = new RpcServer()
+                .setPort(PORT)
+                .setTimeout(3000)
+                .setWorkerThreads(2 * COUNT_CALLS)
+                .register(provider);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rpcServer.startService();
+            }
+        }, "server-" + PORT);
+        thread.setDaemon(true);
+        thread.start();
+        return rpcServer;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok: " : "FAILED: ") + what);
+    }
+}